@@ -19,13 +19,23 @@ package org.fcrepo.auth.roles.basic;
 
 
 import java.security.Principal;
+import java.util.Arrays;
 import java.util.Set;
 
 import org.fcrepo.auth.roles.common.AbstractRolesPEP;
+import org.fcrepo.auth.roles.common.DecisionCache;
+import org.fcrepo.auth.roles.common.RoleSet;
+import org.fcrepo.auth.roles.common.Constants.JcrName;
+import org.modeshape.jcr.value.Path;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Grants admins any action, writers any action on non-ACL nodes and readers
+ * read actions. The decisions are precomputed in a table indexed by the
+ * caller's role bits, the kind of action and whether the path is an ACL path,
+ * so a check performs no allocation.
+ *
  * @author Gregory Jansen
  */
 public class BasicRolesPEP extends AbstractRolesPEP {
@@ -33,6 +43,32 @@ public class BasicRolesPEP extends AbstractRolesPEP {
     public static final Logger log = LoggerFactory
             .getLogger(BasicRolesPEP.class);
 
+    static final int ADMIN = 1;
+
+    static final int WRITER = 1 << 1;
+
+    static final int READER = 1 << 2;
+
+    private static final int ROLE_COMBINATIONS = 1 << 3;
+
+    private static final long ADMIN_BIT = RoleSet.roleBit("admin");
+
+    private static final long WRITER_BIT = RoleSet.roleBit("writer");
+
+    private static final long READER_BIT = RoleSet.roleBit("reader");
+
+    /**
+     * Whether the roles of resolved role sets can be read from their bits,
+     * which fails only if other role names took every bit first.
+     */
+    private static final boolean ROLE_BITS = ADMIN_BIT != 0 &&
+            WRITER_BIT != 0 && READER_BIT != 0;
+
+    /**
+     * Decisions indexed by {@link #index(int, boolean, boolean)}.
+     */
+    private static final boolean[] DECISIONS = compileDecisions();
+
     /*
      * (non-Javadoc)
      * @see
@@ -44,35 +80,134 @@ public class BasicRolesPEP extends AbstractRolesPEP {
     public boolean rolesHaveModeShapePermission(final String absPath,
             final String[] actions, final Set<Principal> allPrincipals,
             final Principal userPrincipal, final Set<String> roles) {
-        if (roles.size() == 0) {
+        return decide(roles, actions, isAclPath(absPath));
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see
+     * org.fcrepo.auth.roles.common.AbstractRolesPEP#rolesHaveModeShapePermission
+     * (org.modeshape.jcr.value.Path, java.lang.String[], java.util.Set,
+     * java.security.Principal, java.util.Set)
+     */
+    @Override
+    public boolean rolesHaveModeShapePermission(final Path absPath,
+            final String[] actions, final Set<Principal> allPrincipals,
+            final Principal userPrincipal, final Set<String> roles) {
+        return decide(roles, actions, isAclPath(absPath));
+    }
+
+    /**
+     * Decisions are looked up in a table that is cheaper to consult than any
+     * cache, and a cache keyed by path would hold one entry per node for the
+     * same few outcomes, so a decision cache is never used and is not
+     * injected from the Spring context.
+     *
+     * @param decisionCache ignored
+     */
+    @Override
+    public void setDecisionCache(final DecisionCache decisionCache) {
+        if (decisionCache != null) {
+            log.info("Ignoring decision cache {}, basic roles decisions " +
+                    "are not cached", decisionCache);
+        }
+        super.setDecisionCache(null);
+    }
+
+    private static boolean decide(final Set<String> roles,
+            final String[] actions, final boolean aclPath) {
+        if (roles.isEmpty()) {
             log.debug("A caller without content roles can do nothing in the repository.");
             return false;
         }
-        if (roles.contains("admin")) {
-            log.debug("Granting an admin role permission to perform any action.");
-            return true;
+        final int mask = roleMask(roles);
+        if (mask == 0) {
+            log.error(
+                    "There are roles in session that aren't recognized by this PEP: {}",
+                    roles);
+            return false;
         }
-        if (roles.contains("writer")) {
-            if (absPath.toString().contains(AUTHZ_DETECTION)) {
-                log.debug("Denying writer role permission to perform an action on an ACL node.");
-                return false;
-            } else {
-                log.debug("Granting writer role permission to perform any action on a non-ACL nodes.");
+        final boolean decision =
+                DECISIONS[index(mask, isReadAction(actions), aclPath)];
+        if (log.isDebugEnabled()) {
+            log.debug("Role bits {} {} {} on {} ACL path", mask,
+                    decision ? "granted" : "denied", Arrays.toString(actions),
+                    aclPath ? "an" : "a non");
+        }
+        return decision;
+    }
+
+    /**
+     * @param path
+     * @return true if any segment of the path is in the access roles namespace
+     */
+    static boolean isAclPath(final Path path) {
+        for (int i = 0; i < path.size(); i++) {
+            if (JcrName.NS_URI.equals(path.getSegment(i).getName()
+                    .getNamespaceUri())) {
                 return true;
             }
         }
+        return false;
+    }
+
+    static int roleMask(final Set<String> roles) {
+        if (ROLE_BITS && roles instanceof RoleSet) {
+            final long bits = ((RoleSet) roles).getRoleBits();
+            return ((bits & ADMIN_BIT) != 0 ? ADMIN : 0) |
+                    ((bits & WRITER_BIT) != 0 ? WRITER : 0) |
+                    ((bits & READER_BIT) != 0 ? READER : 0);
+        }
+        int mask = 0;
+        if (roles.contains("admin")) {
+            mask |= ADMIN;
+        }
+        if (roles.contains("writer")) {
+            mask |= WRITER;
+        }
         if (roles.contains("reader")) {
-            if (actions.length == 1 && "read".equals(actions[0])) {
-                log.debug("Granting reader role permission to perform a read action.");
-                return true;
-            } else {
-                log.debug("Denying reader role permission to perform a non-read action.");
-                return false;
+            mask |= READER;
+        }
+        return mask;
+    }
+
+    private static boolean isReadAction(final String[] actions) {
+        return actions.length == 1 && "read".equals(actions[0]);
+    }
+
+    private static int index(final int mask, final boolean read,
+            final boolean aclPath) {
+        return (mask << 2) | (read ? 2 : 0) | (aclPath ? 1 : 0);
+    }
+
+    private static boolean[] compileDecisions() {
+        final boolean[] table = new boolean[ROLE_COMBINATIONS << 2];
+        for (int mask = 0; mask < ROLE_COMBINATIONS; mask++) {
+            for (final boolean read : new boolean[] {true, false}) {
+                for (final boolean aclPath : new boolean[] {true, false}) {
+                    table[index(mask, read, aclPath)] =
+                            evaluate(mask, read, aclPath);
+                }
             }
         }
-        log.error(
-                "There are roles in session that aren't recognized by this PEP: {}",
-                roles);
+        return table;
+    }
+
+    /**
+     * The basic roles policy: admins may do anything, writers anything except
+     * on ACL nodes, readers may only read.
+     */
+    private static boolean evaluate(final int mask, final boolean read,
+            final boolean aclPath) {
+        if ((mask & ADMIN) != 0) {
+            return true;
+        }
+        if ((mask & WRITER) != 0) {
+            return !aclPath;
+        }
+        if ((mask & READER) != 0) {
+            return read;
+        }
         return false;
     }
 
@@ -0,0 +1,140 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.auth.roles.basic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.security.Principal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.fcrepo.auth.roles.common.AbstractRolesPEP;
+import org.fcrepo.auth.roles.common.CompiledAcl;
+import org.fcrepo.auth.roles.common.Constants.JcrName;
+import org.fcrepo.auth.roles.common.InMemoryDecisionCache;
+import org.junit.Test;
+import org.modeshape.jcr.ExecutionContext;
+import org.modeshape.jcr.value.NameFactory;
+import org.modeshape.jcr.value.Path;
+import org.modeshape.jcr.value.PathFactory;
+
+/**
+ * Tests the decisions of the BasicRolesPEP.
+ */
+public class BasicRolesPEPTest {
+
+    private static final String[] READ = {"read"};
+
+    private static final String[] WRITE = {"set_property"};
+
+    private final BasicRolesPEP pep = new BasicRolesPEP();
+
+    private final ExecutionContext context = new ExecutionContext();
+
+    private final PathFactory paths = context.getValueFactories()
+            .getPathFactory();
+
+    private final NameFactory names = context.getValueFactories()
+            .getNameFactory();
+
+    private final Path contentPath = paths.create("/a/b");
+
+    private final Path aclPath = paths.create(contentPath, names.create(
+            JcrName.NS_URI, "rbacl"));
+
+    private final Set<Principal> principals = Collections.emptySet();
+
+    @Test
+    public void testAdmin() {
+        final Set<String> roles = roles("admin");
+        assertTrue(check(contentPath, WRITE, roles));
+        assertTrue(check(aclPath, WRITE, roles));
+    }
+
+    @Test
+    public void testWriter() {
+        final Set<String> roles = roles("writer");
+        assertTrue(check(contentPath, WRITE, roles));
+        assertTrue(check(contentPath, READ, roles));
+        assertFalse(check(aclPath, READ, roles));
+        assertFalse(pep.rolesHaveModeShapePermission(aclPath.toString(), READ,
+                principals, null, roles));
+    }
+
+    @Test
+    public void testReader() {
+        final Set<String> roles = roles("reader");
+        assertTrue(check(contentPath, READ, roles));
+        assertTrue(check(aclPath, READ, roles));
+        assertFalse(check(contentPath, WRITE, roles));
+    }
+
+    @Test
+    public void testHighestRoleWins() {
+        assertTrue(check(contentPath, WRITE, roles("reader", "writer")));
+    }
+
+    @Test
+    public void testNoOrUnknownRoles() {
+        assertFalse(check(contentPath, READ, roles()));
+        assertFalse(check(contentPath, READ, roles("visitor")));
+    }
+
+    @Test
+    public void testResolvedRolesUseRoleBits() {
+        final CompiledAcl acl =
+                CompiledAcl.compile(Collections.singletonMap("editors",
+                        Arrays.asList("writer", "reader")));
+        final Principal editors = new Principal() {
+
+            @Override
+            public String getName() {
+                return "editors";
+            }
+        };
+        final Set<String> roles =
+                AbstractRolesPEP.resolveUserRoles(acl, Collections
+                        .singleton(editors));
+        assertEquals(BasicRolesPEP.WRITER | BasicRolesPEP.READER,
+                BasicRolesPEP.roleMask(roles));
+        assertEquals(BasicRolesPEP.roleMask(roles(roles
+                .toArray(new String[0]))), BasicRolesPEP.roleMask(roles));
+    }
+
+    @Test
+    public void testDecisionCacheIsIgnored() {
+        pep.setDecisionCache(new InMemoryDecisionCache());
+        assertNull(pep.getDecisionCache());
+    }
+
+    private boolean check(final Path path, final String[] actions,
+            final Set<String> roles) {
+        return pep.rolesHaveModeShapePermission(path, actions, principals,
+                null, roles);
+    }
+
+    private static Set<String> roles(final String... roles) {
+        final Set<String> result = new HashSet<String>();
+        Collections.addAll(result, roles);
+        return result;
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.basic;
+
+import java.util.Iterator;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+
+/**
+ * A node iterator over a fixed list of nodes.
+ */
+class ListNodeIterator implements NodeIterator {
+
+    private final Iterator<Node> nodes;
+
+    private long position = 0;
+
+    private final long size;
+
+    ListNodeIterator(final List<Node> nodes) {
+        this.nodes = nodes.iterator();
+        this.size = nodes.size();
+    }
+
+    @Override
+    public Node nextNode() {
+        position++;
+        return nodes.next();
+    }
+
+    @Override
+    public Object next() {
+        return nextNode();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return nodes.hasNext();
+    }
+
+    @Override
+    public void skip(final long skipNum) {
+        for (long i = 0; i < skipNum; i++) {
+            nextNode();
+        }
+    }
+
+    @Override
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public long getPosition() {
+        return position;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
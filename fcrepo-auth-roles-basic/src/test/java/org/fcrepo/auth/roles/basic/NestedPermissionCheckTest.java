@@ -0,0 +1,127 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.basic;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.security.Principal;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.Session;
+
+import org.fcrepo.auth.roles.common.AccessRolesProvider;
+import org.fcrepo.auth.roles.common.CompiledAcl;
+import org.fcrepo.http.commons.session.SessionFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.modeshape.jcr.ExecutionContext;
+import org.modeshape.jcr.value.Path;
+import org.modeshape.jcr.value.PathFactory;
+
+/**
+ * Tests that a permission check made while another is in progress on the
+ * same thread is still decided.
+ */
+public class NestedPermissionCheckTest {
+
+    private static final String[] READ = {"read"};
+
+    private final PathFactory paths = new ExecutionContext()
+            .getValueFactories().getPathFactory();
+
+    private final Principal reader = principal("examplereader");
+
+    private final Principal stranger = principal("stranger");
+
+    private BasicRolesPEP pep = null;
+
+    private Boolean nestedDecision = null;
+
+    @Before
+    public void setUp() throws Exception {
+        final Session session = mock(Session.class);
+        when(session.isLive()).thenReturn(true);
+        final SessionFactory sessionFactory = mock(SessionFactory.class);
+        when(sessionFactory.getInternalSession()).thenReturn(session);
+        final AccessRolesProvider provider = mock(AccessRolesProvider.class);
+        final CompiledAcl acl = CompiledAcl.compile(readerAcl());
+        when(provider.findCompiledAclForPath(any(Path.class),
+                any(Session.class))).thenAnswer(new Answer<CompiledAcl>() {
+
+            @Override
+            public CompiledAcl answer(final InvocationOnMock invocation) {
+                final Path path = (Path) invocation.getArguments()[0];
+                if (path.equals(paths.create("/outer"))) {
+                    // a check for another user's session, made by code
+                    // running while the outer check is in progress
+                    nestedDecision =
+                            pep.hasModeShapePermission(paths
+                                    .create("/inner"), READ, Collections
+                                    .singleton(stranger), stranger);
+                }
+                return acl;
+            }
+        });
+        pep = new BasicRolesPEP();
+        pep.setSessionFactory(sessionFactory);
+        pep.setAccessRolesProvider(provider);
+    }
+
+    @After
+    public void tearDown() {
+        pep.shutdown();
+    }
+
+    @Test
+    public void testNestedCheckIsEvaluated() {
+        assertTrue(pep.hasModeShapePermission(paths.create("/outer"), READ,
+                Collections.singleton(reader), reader));
+        assertFalse("The nested check must not be permitted blindly",
+                nestedDecision);
+    }
+
+    @Test
+    public void testNestedCheckCanBePermitted() {
+        final Set<Principal> principals = Collections.singleton(reader);
+        assertTrue(pep.hasModeShapePermission(paths.create("/inner"), READ,
+                principals, reader));
+    }
+
+    private Map<String, List<String>> readerAcl() {
+        return Collections.singletonMap(reader.getName(), Collections
+                .singletonList("reader"));
+    }
+
+    private static Principal principal(final String name) {
+        return new Principal() {
+
+            @Override
+            public String getName() {
+                return name;
+            }
+        };
+    }
+}
@@ -0,0 +1,233 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.basic;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.fcrepo.auth.roles.common.AbstractRolesPEP.PathIterator;
+import org.fcrepo.auth.roles.common.AccessRolesProvider;
+import org.fcrepo.auth.roles.common.CompiledAcl;
+import org.fcrepo.http.commons.session.SessionFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.modeshape.jcr.ExecutionContext;
+import org.modeshape.jcr.value.Path;
+import org.modeshape.jcr.value.PathFactory;
+
+/**
+ * Tests filtering paths for reading in batches.
+ */
+public class PathIteratorTest {
+
+    private final PathFactory paths = new ExecutionContext()
+            .getValueFactories().getPathFactory();
+
+    private final Principal user = new Principal() {
+
+        @Override
+        public String getName() {
+            return "someone";
+        }
+    };
+
+    private final Set<Principal> principals = Collections.singleton(user);
+
+    private final Session session = mock(Session.class);
+
+    private final Path readable = paths.create("/readable");
+
+    private final Path hidden = paths.create("/hidden");
+
+    private AccessRolesProvider provider = null;
+
+    private BasicRolesPEP pep = null;
+
+    @Before
+    public void setUp() throws RepositoryException {
+        provider = mock(AccessRolesProvider.class);
+        when(provider.getCompiledAclForAclPath(eq(readable),
+                any(Session.class))).thenReturn(
+                CompiledAcl.compile(Collections.singletonMap(user.getName(),
+                        Collections.singletonList("reader"))));
+        when(provider.getCompiledAclForAclPath(eq(hidden),
+                any(Session.class))).thenReturn(
+                CompiledAcl.compile(Collections.singletonMap("someone else",
+                        Collections.singletonList("reader"))));
+        pep = new BasicRolesPEP();
+        pep.setAccessRolesProvider(provider);
+    }
+
+    @After
+    public void tearDown() {
+        pep.shutdown();
+    }
+
+    @Test
+    public void testKeepsOrderAcrossBatchBoundaries()
+        throws RepositoryException {
+        final List<Path> input = new ArrayList<Path>();
+        final List<Path> expected = new ArrayList<Path>();
+        for (int i = 0; i < 7; i++) {
+            final Path path = child(i % 3 == 0 ? hidden : readable, "n" + i);
+            input.add(path);
+            if (i % 3 != 0) {
+                expected.add(path);
+            }
+        }
+        assertEquals(expected, drain(iterator(input, 3)));
+        // once per ACL in each of the three windows, the last holding one path
+        verify(provider, times(3)).getCompiledAclForAclPath(eq(hidden),
+                any(Session.class));
+        verify(provider, times(2)).getCompiledAclForAclPath(eq(readable),
+                any(Session.class));
+    }
+
+    @Test
+    public void testSkipsWindowsWithNothingReadable()
+        throws RepositoryException {
+        final Path last = child(readable, "last");
+        final List<Path> input =
+                asList(child(hidden, "a"), child(hidden, "b"), child(hidden,
+                        "c"), last);
+        assertEquals(Collections.singletonList(last), drain(iterator(input,
+                2)));
+    }
+
+    @Test
+    public void testPullsOneWindowAtATime() throws RepositoryException {
+        final List<Path> input = new ArrayList<Path>();
+        for (int i = 0; i < 5; i++) {
+            input.add(child(readable, "n" + i));
+        }
+        final Iterator<Path> source = input.iterator();
+        final PathIterator filtered =
+                pep.new PathIterator(session, source, user, principals, 2);
+        assertEquals(input.get(0), filtered.next());
+        assertEquals(input.get(1), filtered.next());
+        assertEquals(input.get(2), source.next());
+    }
+
+    @Test
+    public void testReadsWithConsumingThreadsSession() throws Exception {
+        final Session consumerSession = mock(Session.class);
+        when(consumerSession.isLive()).thenReturn(true);
+        final AtomicReference<Thread> loggedInOn =
+                new AtomicReference<Thread>();
+        final SessionFactory sessionFactory = mock(SessionFactory.class);
+        when(sessionFactory.getInternalSession()).thenAnswer(
+                new Answer<Session>() {
+
+                    @Override
+                    public Session answer(final InvocationOnMock invocation) {
+                        loggedInOn.set(Thread.currentThread());
+                        return consumerSession;
+                    }
+                });
+        pep.setSessionFactory(sessionFactory);
+        final Path path = child(readable, "a");
+        final Iterator<Path> filtered =
+                pep.filterPathsForReading(asList(path).iterator(),
+                        principals, user);
+        verify(sessionFactory, never()).getInternalSession();
+
+        final List<Path> consumed = new ArrayList<Path>();
+        final Thread consumer = new Thread() {
+
+            @Override
+            public void run() {
+                consumed.addAll(drain(filtered));
+            }
+        };
+        consumer.start();
+        consumer.join();
+        assertEquals(asList(path), consumed);
+        assertSame(consumer, loggedInOn.get());
+        verify(provider).findGoverningAclPath(path, consumerSession);
+    }
+
+    @Test
+    public void testEmpty() {
+        final PathIterator filtered =
+                iterator(Collections.<Path> emptyList(), 4);
+        assertFalse(filtered.hasNext());
+        assertNoNext(filtered);
+    }
+
+    @Test
+    public void testExhausted() throws RepositoryException {
+        final PathIterator filtered =
+                iterator(asList(child(readable, "a"), child(hidden, "b")), 4);
+        filtered.next();
+        assertFalse(filtered.hasNext());
+        assertNoNext(filtered);
+    }
+
+    private PathIterator iterator(final List<Path> input, final int batchSize) {
+        return pep.new PathIterator(session, input.iterator(), user,
+                principals, batchSize);
+    }
+
+    private Path child(final Path aclPath, final String name)
+        throws RepositoryException {
+        final Path path = paths.create(aclPath, name);
+        when(provider.findGoverningAclPath(eq(path), any(Session.class)))
+                .thenReturn(aclPath);
+        return path;
+    }
+
+    private static List<Path> drain(final Iterator<Path> iterator) {
+        final List<Path> result = new ArrayList<Path>();
+        while (iterator.hasNext()) {
+            result.add(iterator.next());
+        }
+        return result;
+    }
+
+    private static void assertNoNext(final Iterator<Path> iterator) {
+        try {
+            iterator.next();
+            fail("Expected NoSuchElementException");
+        } catch (final NoSuchElementException e) {
+            // expected
+        }
+    }
+}
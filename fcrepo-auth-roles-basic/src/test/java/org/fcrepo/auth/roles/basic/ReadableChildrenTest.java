@@ -0,0 +1,245 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.basic;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.AccessDeniedException;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.fcrepo.auth.roles.common.AccessRolesProvider;
+import org.fcrepo.auth.roles.common.CompiledAcl;
+import org.fcrepo.auth.roles.common.Constants.JcrName;
+import org.fcrepo.auth.roles.common.ReadableChildrenPage;
+import org.fcrepo.http.commons.session.SessionFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.modeshape.jcr.ExecutionContext;
+import org.modeshape.jcr.value.Path;
+import org.modeshape.jcr.value.PathFactory;
+
+/**
+ * Tests paging through the readable children of a node.
+ */
+public class ReadableChildrenTest {
+
+    private final PathFactory paths = new ExecutionContext()
+            .getValueFactories().getPathFactory();
+
+    private final Principal user = new Principal() {
+
+        @Override
+        public String getName() {
+            return "someone";
+        }
+    };
+
+    private final Set<Principal> principals = Collections.singleton(user);
+
+    private Session session = null;
+
+    private AccessRolesProvider provider = null;
+
+    private BasicRolesPEP pep = null;
+
+    private Node parent = null;
+
+    private final List<Node> children = new ArrayList<Node>();
+
+    @Before
+    public void setUp() throws RepositoryException {
+        session = mock(Session.class, RETURNS_DEEP_STUBS);
+        when(session.isLive()).thenReturn(true);
+        final SessionFactory sessionFactory = mock(SessionFactory.class);
+        when(sessionFactory.getInternalSession()).thenReturn(session);
+        provider = mock(AccessRolesProvider.class);
+        when(provider.findCompiledAclForPath(any(Path.class),
+                any(Session.class))).thenReturn(
+                CompiledAcl.compile(acl(user.getName(), "reader")));
+        pep = new BasicRolesPEP();
+        pep.setSessionFactory(sessionFactory);
+        pep.setAccessRolesProvider(provider);
+
+        parent = mock(Node.class);
+        when(parent.getPath()).thenReturn("/p");
+        when(session.getNode("/p")).thenReturn(parent);
+        when(parent.getNodes()).thenAnswer(new Answer<NodeIterator>() {
+
+            @Override
+            public NodeIterator answer(final InvocationOnMock invocation) {
+                return new ListNodeIterator(new ArrayList<Node>(children));
+            }
+        });
+        for (int i = 1; i <= 5; i++) {
+            child("c" + i);
+        }
+        // c3 carries its own ACL, which grants nothing to the user
+        final Node c3 = children.get(2);
+        when(c3.isNodeType(JcrName.rbaclAssignable.getExpanded()))
+                .thenReturn(true);
+        when(provider.getCompiledAclForAclPath(eq(paths.create("/p/c3")),
+                any(Session.class))).thenReturn(
+                CompiledAcl.compile(acl("someone else", "admin")));
+    }
+
+    @After
+    public void tearDown() {
+        pep.shutdown();
+    }
+
+    @Test
+    public void testFirstPage() throws AccessDeniedException {
+        final ReadableChildrenPage page = list(null, 2);
+        assertEquals(childPaths(1, 2), page.getChildren());
+        assertEquals("c2[1]", page.getContinuationToken());
+    }
+
+    @Test
+    public void testPageSkipsChildWithOwnAcl() throws AccessDeniedException {
+        final ReadableChildrenPage page = list("c2[1]", 2);
+        assertEquals(childPaths(4, 5), page.getChildren());
+        assertNull(page.getContinuationToken());
+    }
+
+    @Test
+    public void testEndOfList() throws AccessDeniedException {
+        final ReadableChildrenPage page = list(null, 10);
+        assertEquals(childPaths(1, 2, 4, 5), page.getChildren());
+        assertNull(page.getContinuationToken());
+    }
+
+    @Test
+    public void testTokenOnLastChildEndsList() throws AccessDeniedException {
+        final ReadableChildrenPage page = list("c5[1]", 2);
+        assertEquals(childPaths(), page.getChildren());
+        assertNull(page.getContinuationToken());
+    }
+
+    @Test
+    public void testPageResumesAfterSiblingIsRemoved()
+        throws AccessDeniedException {
+        final String token = list(null, 2).getContinuationToken();
+        children.remove(0);
+        final ReadableChildrenPage page = list(token, 1);
+        assertEquals(childPaths(4), page.getChildren());
+        assertEquals("c4[1]", page.getContinuationToken());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMalformedToken() throws AccessDeniedException {
+        list("2", 2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTokenWithPath() throws AccessDeniedException {
+        list("c1/c2[1]", 2);
+    }
+
+    @Test
+    public void testPageResumesByNameAfterTokenChildIsRemoved()
+        throws RepositoryException {
+        final String token = list(null, 2).getContinuationToken();
+        children.remove(1);
+        when(parent.hasNode(token)).thenReturn(false);
+        final ReadableChildrenPage page = list(token, 2);
+        assertEquals(childPaths(4, 5), page.getChildren());
+        assertNull(page.getContinuationToken());
+    }
+
+    @Test
+    public void testTokenForMissingChildSortingLast()
+        throws AccessDeniedException {
+        final ReadableChildrenPage page = list("c9[1]", 2);
+        assertEquals(childPaths(), page.getChildren());
+        assertNull(page.getContinuationToken());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptyPage() throws AccessDeniedException {
+        list(null, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativePageSize() throws AccessDeniedException {
+        list(null, -1);
+    }
+
+    @Test
+    public void testAclNodeIsNotListed() throws RepositoryException {
+        final Node rbacl = mock(Node.class);
+        when(rbacl.getName()).thenReturn(JcrName.rbacl.getQualified());
+        when(rbacl.getIndex()).thenReturn(1);
+        when(rbacl.getPath()).thenReturn("/p/" + JcrName.rbacl.getQualified());
+        children.add(1, rbacl);
+        assertEquals(childPaths(1, 2, 4, 5), list(null, 10).getChildren());
+    }
+
+    @Test(expected = AccessDeniedException.class)
+    public void testParentMustBeReadable() throws RepositoryException {
+        when(provider.findCompiledAclForPath(eq(paths.create("/p")),
+                any(Session.class))).thenReturn(
+                CompiledAcl.compile(acl("someone else", "reader")));
+        list(null, 2);
+    }
+
+    private ReadableChildrenPage list(final String token, final int pageSize)
+        throws AccessDeniedException {
+        return pep.listReadableChildren("/p", token, pageSize, principals,
+                user);
+    }
+
+    private List<Path> childPaths(final int... numbers) {
+        final List<Path> result = new ArrayList<Path>();
+        for (final int number : numbers) {
+            result.add(paths.create("/p/c" + number));
+        }
+        return result;
+    }
+
+    private void child(final String name) throws RepositoryException {
+        final Node child = mock(Node.class);
+        when(child.getName()).thenReturn(name);
+        when(child.getIndex()).thenReturn(1);
+        when(child.getPath()).thenReturn("/p/" + name);
+        when(parent.hasNode(name + "[1]")).thenReturn(true);
+        children.add(child);
+    }
+
+    private static Map<String, List<String>> acl(final String principal,
+            final String role) {
+        return Collections.singletonMap(principal, asList(role));
+    }
+}
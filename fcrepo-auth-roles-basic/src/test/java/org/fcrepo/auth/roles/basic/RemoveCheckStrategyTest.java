@@ -0,0 +1,292 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.basic;
+
+import static org.fcrepo.auth.roles.common.AbstractRolesPEP.RemoveCheckStrategy.ACL_QUERY;
+import static org.fcrepo.auth.roles.common.AbstractRolesPEP.RemoveCheckStrategy.PARALLEL;
+import static org.fcrepo.auth.roles.common.AbstractRolesPEP.RemoveCheckStrategy.RECURSIVE;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.security.Principal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.fcrepo.auth.roles.common.AbstractRolesPEP.RemoveCheckStrategy;
+import org.fcrepo.auth.roles.common.AccessRolesProvider;
+import org.fcrepo.auth.roles.common.CompiledAcl;
+import org.fcrepo.auth.roles.common.Constants.JcrName;
+import org.fcrepo.http.commons.session.SessionFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.modeshape.jcr.ExecutionContext;
+import org.modeshape.jcr.value.Path;
+import org.modeshape.jcr.value.PathFactory;
+
+/**
+ * Tests that every remove check strategy reaches the same decision.
+ */
+public class RemoveCheckStrategyTest {
+
+    private static final String[] REMOVE = {"remove"};
+
+    private static final String RBACL = "/" + JcrName.NS_PREFIX + ":rbacl";
+
+    private static final String ASSIGNMENT = "/" + JcrName.NS_PREFIX +
+            ":assignment";
+
+    private final PathFactory paths = new ExecutionContext()
+            .getValueFactories().getPathFactory();
+
+    private final Principal user = new Principal() {
+
+        @Override
+        public String getName() {
+            return "someone";
+        }
+    };
+
+    private final Set<Principal> principals = Collections.singleton(user);
+
+    private Session session = null;
+
+    private AccessRolesProvider provider = null;
+
+    private BasicRolesPEP pep = null;
+
+    @Before
+    public void setUp() throws RepositoryException {
+        session = mock(Session.class, RETURNS_DEEP_STUBS);
+        when(session.getNamespaceURI(JcrName.NS_PREFIX)).thenReturn(
+                JcrName.NS_URI);
+        when(session.isLive()).thenReturn(true);
+        final SessionFactory sessionFactory = mock(SessionFactory.class);
+        when(sessionFactory.getInternalSession()).thenReturn(session);
+        provider = mock(AccessRolesProvider.class);
+        // nodes without an ACL of their own
+        when(provider.getRoles(any(Node.class), eq(false))).thenReturn(null);
+        pep = new BasicRolesPEP();
+        pep.setSessionFactory(sessionFactory);
+        pep.setAccessRolesProvider(provider);
+        pep.setRemoveCheckParallelism(1);
+    }
+
+    @After
+    public void tearDown() {
+        pep.shutdown();
+    }
+
+    @Test
+    public void testWriterCannotRemoveSubtreeWithAcl()
+        throws RepositoryException {
+        aclTree("writer");
+        assertDecisions(false);
+    }
+
+    @Test
+    public void testAdminCanRemoveSubtreeWithAcl() throws RepositoryException {
+        aclTree("admin");
+        assertDecisions(true);
+    }
+
+    @Test
+    public void testWriterCanRemoveSubtreeWithoutAcl()
+        throws RepositoryException {
+        final Node a = node("/a", false);
+        final Node b = node("/a/b", false);
+        final Node c = node("/a/b/c", false);
+        children(a, b);
+        children(b, c);
+        children(c);
+        rootRoles("writer");
+        queryResults();
+        assertDecisions(true);
+    }
+
+    @Test(timeout = 10000)
+    public void testParallelStopsAtFirstDenial() throws Exception {
+        final Node a = node("/a", false);
+        // forked before the denial is found
+        final Node wide = node("/a/wide", false);
+        final Node wideChild = node("/a/wide/x", false);
+        final Node denied = node("/a/denied", true);
+        final Node later = node("/a/later", false);
+        children(a, wide, denied, later);
+        children(wideChild);
+        children(denied);
+        children(later);
+        rootRoles("writer");
+        acl(denied, "reader");
+        // the forked task for /a/wide starts, then waits until released
+        final CountDownLatch wideStarted = new CountDownLatch(1);
+        final CountDownLatch releaseWide = new CountDownLatch(1);
+        final CountDownLatch wideResumed = new CountDownLatch(1);
+        when(wide.hasNodes()).thenReturn(true);
+        when(wide.getNodes()).thenAnswer(new Answer<NodeIterator>() {
+
+            @Override
+            public NodeIterator answer(final InvocationOnMock invocation)
+                throws InterruptedException {
+                wideStarted.countDown();
+                releaseWide.await();
+                return new ListNodeIterator(Arrays.asList(wideChild)) {
+
+                    @Override
+                    public boolean hasNext() {
+                        wideResumed.countDown();
+                        return super.hasNext();
+                    }
+                };
+            }
+        });
+        // the denial is only found once that task is running
+        when(denied.isNodeType(JcrName.rbaclAssignable.getExpanded()))
+                .thenAnswer(new Answer<Boolean>() {
+
+                    @Override
+                    public Boolean answer(final InvocationOnMock invocation)
+                        throws InterruptedException {
+                        wideStarted.await();
+                        return true;
+                    }
+                });
+        pep.setRemoveCheckParallelism(2);
+        pep.setRemoveCheckStrategy(PARALLEL);
+        // decided without waiting for the blocked task
+        assertEquals(false, pep.hasModeShapePermission(paths.create("/a"),
+                REMOVE, principals, user));
+        verify(later, never()).isNodeType(anyString());
+        releaseWide.countDown();
+        wideResumed.await();
+        verify(wideChild, never()).isNodeType(anyString());
+    }
+
+    @Test
+    public void testParallelismChangeTakesEffect() throws RepositoryException {
+        aclTree("admin");
+        pep.setRemoveCheckStrategy(PARALLEL);
+        assertEquals(true, pep.hasModeShapePermission(paths.create("/a"),
+                REMOVE, principals, user));
+        pep.setRemoveCheckParallelism(3);
+        assertEquals(3, pep.getRemoveCheckParallelism());
+        assertEquals(true, pep.hasModeShapePermission(paths.create("/a"),
+                REMOVE, principals, user));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParallelismMustBePositive() {
+        pep.setRemoveCheckParallelism(0);
+    }
+
+    /**
+     * /a with an ACL-bearing child /a/b, whose ACL node holds an assignment.
+     */
+    private void aclTree(final String role) throws RepositoryException {
+        final Node a = node("/a", false);
+        final Node b = node("/a/b", true);
+        final Node rbacl = node("/a/b" + RBACL, false);
+        final Node assignment = node("/a/b" + RBACL + ASSIGNMENT, false);
+        children(a, b);
+        children(b, rbacl);
+        children(rbacl, assignment);
+        children(assignment);
+        rootRoles(role);
+        acl(b, role);
+        queryResults(b);
+    }
+
+    private void assertDecisions(final boolean expected) {
+        for (final RemoveCheckStrategy strategy : Arrays.asList(RECURSIVE,
+                ACL_QUERY, PARALLEL)) {
+            pep.setRemoveCheckStrategy(strategy);
+            assertEquals(strategy.toString(), expected, pep
+                    .hasModeShapePermission(paths.create("/a"), REMOVE,
+                            principals, user));
+        }
+    }
+
+    private Node node(final String path, final boolean assignable)
+        throws RepositoryException {
+        final Node node = mock(Node.class);
+        when(node.getPath()).thenReturn(path);
+        when(node.isNodeType(JcrName.rbaclAssignable.getExpanded()))
+                .thenReturn(assignable);
+        when(session.getNode(path)).thenReturn(node);
+        return node;
+    }
+
+    private static void children(final Node parent, final Node... children)
+        throws RepositoryException {
+        when(parent.hasNodes()).thenReturn(children.length > 0);
+        when(parent.getNodes()).thenAnswer(new Answer<NodeIterator>() {
+
+            @Override
+            public NodeIterator answer(final InvocationOnMock invocation) {
+                return new ListNodeIterator(Arrays.asList(children));
+            }
+        });
+    }
+
+    private void rootRoles(final String role) throws RepositoryException {
+        when(provider.findCompiledAclForPath(any(Path.class),
+                any(Session.class))).thenReturn(CompiledAcl.compile(acl(role)));
+    }
+
+    private void acl(final Node node, final String role)
+        throws RepositoryException {
+        when(provider.getRoles(node, false)).thenReturn(acl(role));
+        when(provider.getCompiledAclForAclPath(eq(paths.create(node
+                .getPath())), any(Session.class))).thenReturn(
+                CompiledAcl.compile(acl(role)));
+    }
+
+    private Map<String, List<String>> acl(final String role) {
+        return Collections.singletonMap(user.getName(), Collections
+                .singletonList(role));
+    }
+
+    private void queryResults(final Node... acls) throws RepositoryException {
+        when(session.getWorkspace().getQueryManager().createQuery(
+                anyString(), anyString()).execute().getNodes()).thenAnswer(
+                new Answer<NodeIterator>() {
+
+                    @Override
+                    public NodeIterator answer(
+                            final InvocationOnMock invocation) {
+                        return new ListNodeIterator(Arrays.asList(acls));
+                    }
+                });
+    }
+}
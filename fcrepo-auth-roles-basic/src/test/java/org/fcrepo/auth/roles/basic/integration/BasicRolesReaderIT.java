@@ -492,4 +492,13 @@ public class BasicRolesReaderIT extends AbstractBasicRolesIT {
                 .getStatusCode(), canAddACL("examplereader", "/", "everyone",
                         "admin", true));
     }
+
+    @Test
+    public void testReaderCanReadEffectiveRolesOfInheritedACLChildObj()
+            throws ClientProtocolException, IOException {
+        assertEquals(
+                "Reader can read effective roles of testparent1/testchild1NoACL",
+                OK.getStatusCode(), canGetEffectiveRoles("examplereader",
+                        "testparent1/testchild1NoACL", true));
+    }
 }
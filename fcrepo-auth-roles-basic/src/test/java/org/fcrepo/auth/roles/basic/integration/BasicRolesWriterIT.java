@@ -543,4 +543,21 @@ public class BasicRolesWriterIT extends AbstractBasicRolesIT {
                 .getStatusCode(), canAddACL("examplewriter", "/", "everyone",
                         "admin", true));
     }
+
+    @Test
+    public void testWriterCannotReadEffectiveRolesOfOpenObj()
+            throws ClientProtocolException, IOException {
+        assertEquals("Writer cannot read effective roles of testparent1",
+                FORBIDDEN.getStatusCode(), canGetEffectiveRoles(
+                        "examplewriter", "testparent1", true));
+    }
+
+    @Test
+    public void testWriterCannotReadEffectiveRolesOfInheritedACLChildObj()
+            throws ClientProtocolException, IOException {
+        assertEquals(
+                "Writer cannot read effective roles of testparent1/testchild1NoACL",
+                FORBIDDEN.getStatusCode(), canGetEffectiveRoles(
+                        "examplewriter", "testparent1/testchild1NoACL", true));
+    }
 }
@@ -17,27 +17,44 @@
 package org.fcrepo.auth.roles.common;
 
 import java.security.Principal;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.annotation.PreDestroy;
+import javax.jcr.AccessDeniedException;
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.PathNotFoundException;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
 
 import org.fcrepo.auth.FedoraPolicyEnforcementPoint;
+import org.fcrepo.auth.roles.common.Constants.JcrName;
 import org.fcrepo.http.commons.session.SessionFactory;
-import org.modeshape.jcr.JcrSession;
 import org.modeshape.jcr.value.Path;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import com.codahale.metrics.RatioGauge;
+import com.google.common.cache.CacheStats;
+
 /**
  * @author Gregory Jansen
  */
@@ -49,13 +66,217 @@ public abstract class AbstractRolesPEP implements FedoraPolicyEnforcementPoint {
     protected static final String AUTHZ_DETECTION = "/{" +
             Constants.JcrName.NS_URI + "}";
 
+    private static final String AUTHZ_PREFIX_DETECTION = "/" +
+            Constants.JcrName.NS_PREFIX + ":";
+
+    /**
+     * Nesting depth at which permission checks are denied rather than risk
+     * unbounded recursion.
+     */
+    static final int MAX_NESTED_CHECKS = 8;
+
     private static final String[] READ_ACTIONS = {"read"};
 
     private static final String[] REMOVE_ACTIONS = {"remove"};
 
+    private static final String RBACL_NAME = JcrName.rbacl.getQualified();
+
+    private static final Set<String> EMPTY_ROLES = RoleSet.EMPTY;
+
+    private static final AtomicLong INSTANCES = new AtomicLong();
+
+    private static final ThreadLocal<Boolean> UNCACHEABLE =
+            new ThreadLocal<Boolean>();
+
+    /**
+     * Ways of checking that every node beneath a removed node may be removed.
+     */
+    public static enum RemoveCheckStrategy {
+        /**
+         * Visit every descendant node and check it with its effective roles.
+         */
+        RECURSIVE,
+        /**
+         * Query for the rbaclAssignable nodes in the subtree and check only
+         * those and their ACL nodes. Descendants without their own ACL share
+         * the roles already checked on their ACL-bearing ancestor, so this is
+         * equivalent to the recursive check when the PEP's decisions depend
+         * on roles, actions and whether a path is an ACL path, rather than on
+         * the individual paths of other nodes; PEPs whose decisions depend on
+         * paths refuse it.
+         * <p>
+         * ACL nodes are found through the repository's query index, so the
+         * check is only as complete as the index: ACL nodes not yet indexed,
+         * for instance under asynchronous indexing, are not checked.
+         */
+        ACL_QUERY,
+        /**
+         * Visit every descendant node like {@link #RECURSIVE}, but split the
+         * subtree into tasks run on a fork/join pool, each with its own
+         * internal session. Traversal within a task is iterative, so deep
+         * trees are bounded by heap rather than stack, and the first denial
+         * cancels the remaining work.
+         */
+        PARALLEL
+    }
+
     @Autowired
     private AccessRolesProvider accessRolesProvider = null;
 
+    private RemoveCheckStrategy removeCheckStrategy =
+            RemoveCheckStrategy.RECURSIVE;
+
+    private int readFilterBatchSize = 1;
+
+    private volatile int removeCheckParallelism = Runtime.getRuntime()
+            .availableProcessors();
+
+    private volatile ForkJoinPool removeCheckPool = null;
+
+    private volatile DecisionCache decisionCache = null;
+
+    private final String decisionCacheNamespace = getClass().getName() + "#" +
+            INSTANCES.incrementAndGet();
+
+    private final AtomicLong memoLookups = new AtomicLong();
+
+    private final AtomicLong memoHits = new AtomicLong();
+
+    /**
+     * Permission check metrics, named after the concrete PEP class.
+     */
+    protected final PermissionMetrics metrics = new PermissionMetrics(
+            getClass());
+
+    /**
+     * Default constructor.
+     */
+    public AbstractRolesPEP() {
+        metrics.registerGauge(new RatioGauge() {
+
+            @Override
+            protected Ratio getRatio() {
+                return Ratio.of(memoHits.get(), memoLookups.get());
+            }
+        }, "memo", "hit-ratio");
+    }
+
+    /**
+     * @return the number of paths filterPathsForReading evaluates together
+     */
+    public int getReadFilterBatchSize() {
+        return readFilterBatchSize;
+    }
+
+    /**
+     * @param readFilterBatchSize the number of paths filterPathsForReading
+     *        pulls ahead and evaluates together, grouped by governing ACL
+     */
+    public void setReadFilterBatchSize(final int readFilterBatchSize) {
+        this.readFilterBatchSize = readFilterBatchSize;
+    }
+
+    /**
+     * @return the strategy used to authorize removal of descendant nodes
+     */
+    public RemoveCheckStrategy getRemoveCheckStrategy() {
+        return removeCheckStrategy;
+    }
+
+    /**
+     * @param removeCheckStrategy the strategy used to authorize removal of
+     *        descendant nodes
+     * @throws IllegalArgumentException if this PEP's decisions cannot be
+     *         checked soundly with the strategy
+     */
+    public void setRemoveCheckStrategy(
+            final RemoveCheckStrategy removeCheckStrategy) {
+        if (!supportsRemoveCheckStrategy(removeCheckStrategy)) {
+            throw new IllegalArgumentException(getClass().getSimpleName() +
+                    " does not support the " + removeCheckStrategy +
+                    " remove check");
+        }
+        this.removeCheckStrategy = removeCheckStrategy;
+    }
+
+    /**
+     * Whether a remove check strategy gives the same answers as visiting
+     * every descendant with this PEP. All strategies are supported by
+     * default; PEPs whose decisions depend on the paths of individual nodes
+     * must refuse {@link RemoveCheckStrategy#ACL_QUERY}.
+     *
+     * @param strategy the strategy
+     * @return true if the strategy may be used
+     */
+    protected boolean supportsRemoveCheckStrategy(
+            final RemoveCheckStrategy strategy) {
+        return true;
+    }
+
+    /**
+     * @return the number of threads used by the parallel remove check
+     */
+    public int getRemoveCheckParallelism() {
+        return removeCheckParallelism;
+    }
+
+    /**
+     * Set the number of threads of the parallel remove check. A pool already
+     * started is shut down once its running checks finish, and the next
+     * check starts a pool of the new size.
+     *
+     * @param removeCheckParallelism the number of threads used by the
+     *        parallel remove check, which defaults to the number of
+     *        processors
+     */
+    public void setRemoveCheckParallelism(final int removeCheckParallelism) {
+        if (removeCheckParallelism < 1) {
+            throw new IllegalArgumentException(
+                    "Invalid remove check parallelism: " +
+                            removeCheckParallelism);
+        }
+        final ForkJoinPool previous;
+        synchronized (this) {
+            this.removeCheckParallelism = removeCheckParallelism;
+            previous = removeCheckPool;
+            removeCheckPool = null;
+        }
+        if (previous != null) {
+            previous.shutdown();
+        }
+    }
+
+    /**
+     * @return the cache consulted before deciding on a set of roles, or null
+     */
+    public DecisionCache getDecisionCache() {
+        return decisionCache;
+    }
+
+    /**
+     * Set the cache consulted before deciding on a set of roles. There is no
+     * cache by default; a cache bean in the Spring context is used
+     * automatically, and null disables caching.
+     *
+     * @param decisionCache the decision cache
+     */
+    @Autowired(required = false)
+    public void setDecisionCache(final DecisionCache decisionCache) {
+        this.decisionCache = decisionCache;
+        if (decisionCache instanceof InMemoryDecisionCache) {
+            final InMemoryDecisionCache cache =
+                    (InMemoryDecisionCache) decisionCache;
+            metrics.registerGauge(new RatioGauge() {
+
+                @Override
+                protected Ratio getRatio() {
+                    final CacheStats stats = cache.stats();
+                    return Ratio.of(stats.hitCount(), stats.requestCount());
+                }
+            }, "decision-cache", "hit-ratio");
+        }
+    }
+
     /**
      * @return the accessRolesProvider
      */
@@ -74,6 +295,8 @@ public abstract class AbstractRolesPEP implements FedoraPolicyEnforcementPoint {
     @Autowired
     private SessionFactory sessionFactory = null;
 
+    private volatile InternalSessionProvider internalSessions = null;
+
     /**
      * @return the sessionFactory
      */
@@ -85,7 +308,73 @@ public abstract class AbstractRolesPEP implements FedoraPolicyEnforcementPoint {
      * @param sessionFactory the sessionFactory to set
      */
     public void setSessionFactory(final SessionFactory sessionFactory) {
+        logoutInternalSessions();
         this.sessionFactory = sessionFactory;
+        this.internalSessions = null;
+    }
+
+    /**
+     * Get the read-only internal session for the current thread. Sessions are
+     * reused across permission checks rather than obtained for each one.
+     *
+     * @return the internal session
+     * @throws RepositoryException if a session cannot be obtained
+     */
+    protected Session getInternalSession() throws RepositoryException {
+        InternalSessionProvider provider = internalSessions;
+        if (provider == null) {
+            synchronized (this) {
+                provider = internalSessions;
+                if (provider == null) {
+                    provider = new InternalSessionProvider(sessionFactory);
+                    internalSessions = provider;
+                }
+            }
+        }
+        return provider.getSession();
+    }
+
+    /**
+     * Get the pool that runs parallel remove checks, creating it on first
+     * use.
+     *
+     * @return the pool
+     */
+    private ForkJoinPool getRemoveCheckPool() {
+        ForkJoinPool pool = removeCheckPool;
+        if (pool == null) {
+            synchronized (this) {
+                pool = removeCheckPool;
+                if (pool == null) {
+                    pool = new ForkJoinPool(removeCheckParallelism);
+                    removeCheckPool = pool;
+                }
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Stop the parallel remove check pool and log out the internal sessions.
+     */
+    @PreDestroy
+    public void shutdown() {
+        final ForkJoinPool pool = removeCheckPool;
+        if (pool != null) {
+            pool.shutdown();
+            removeCheckPool = null;
+        }
+        logoutInternalSessions();
+    }
+
+    /**
+     * Log out the internal sessions used for permission checks.
+     */
+    public void logoutInternalSessions() {
+        final InternalSessionProvider provider = internalSessions;
+        if (provider != null) {
+            provider.close();
+        }
     }
 
     /*
@@ -97,14 +386,165 @@ public abstract class AbstractRolesPEP implements FedoraPolicyEnforcementPoint {
     @Override
     public Iterator<Path> filterPathsForReading(final Iterator<Path> paths,
             final Set<Principal> allPrincipals, final Principal userPrincipal) {
-        Session session = null;
+        // the caller may consume the iterator on another thread, so it reads
+        // with the internal session of whichever thread consumes it
+        return new PathIterator(paths, userPrincipal, allPrincipals,
+                readFilterBatchSize);
+    }
+
+    /**
+     * List one page of the children of a node that the caller may read.
+     * Children are read lazily from the repository, so memory use depends on
+     * the page size rather than on the number of children. The roles of the
+     * parent's governing ACL are resolved once per page; only children that
+     * carry their own ACL are resolved separately. The ACL node itself is
+     * never listed. The continuation token names the last child examined, so
+     * a page resumes after that child even if other children were added or
+     * removed in the meantime; if that child was removed, the page lists the
+     * children whose names sort after it.
+     *
+     * @param parentPath the JCR path of the parent node
+     * @param continuationToken the token from the previous page, or null for
+     *        the first page
+     * @param pageSize the maximum number of readable children to return
+     * @param allPrincipals the principals of the request
+     * @param userPrincipal the user principal of the request
+     * @return the page
+     * @throws AccessDeniedException if the caller may not read the parent
+     * @throws IllegalArgumentException if the page size is less than one or
+     *         the token is malformed
+     */
+    public ReadableChildrenPage listReadableChildren(final String parentPath,
+            final String continuationToken, final int pageSize,
+            final Set<Principal> allPrincipals, final Principal userPrincipal)
+        throws AccessDeniedException {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("Invalid page size: " +
+                    pageSize);
+        }
+        final int tokenIndex =
+                continuationToken == null ? 0 : tokenIndex(continuationToken);
         try {
-            session = sessionFactory.getInternalSession();
+            final Session session = getInternalSession();
+            final Node parent = session.getNode(parentPath);
+            final Path parentJcrPath =
+                    AclPathIndex.toPath(session, parent.getPath());
+            final Set<String> parentRoles =
+                    resolveUserRoles(accessRolesProvider
+                            .findCompiledAclForPath(parentJcrPath, session),
+                            allPrincipals);
+            if (!rolesHaveCachedPermission(parentJcrPath, READ_ACTIONS,
+                    allPrincipals, userPrincipal, parentRoles)) {
+                throw new AccessDeniedException("Cannot read " + parentPath);
+            }
+            final NodeIterator children = parent.getNodes();
+            // the name of a removed child, after which to resume by name order
+            String resumeName = null;
+            if (continuationToken != null) {
+                final String tokenName =
+                        continuationToken.substring(0, continuationToken
+                                .lastIndexOf('['));
+                if (parent.hasNode(continuationToken)) {
+                    seekPast(children, tokenName, tokenIndex);
+                } else {
+                    resumeName = tokenName;
+                }
+            }
+            final List<Path> readable = new ArrayList<Path>(pageSize);
+            Node last = null;
+            while (readable.size() < pageSize && children.hasNext()) {
+                final Node child = children.nextNode();
+                last = child;
+                if (RBACL_NAME.equals(child.getName()) ||
+                        (resumeName != null && compareToToken(child,
+                                resumeName, tokenIndex) <= 0)) {
+                    continue;
+                }
+                final Path childPath =
+                        AclPathIndex.toPath(session, child.getPath());
+                final Set<String> roles =
+                        child.isNodeType(JcrName.rbaclAssignable.getExpanded())
+                                ? resolveUserRoles(accessRolesProvider
+                                        .getCompiledAclForAclPath(childPath,
+                                                session), allPrincipals)
+                                : parentRoles;
+                if (rolesHaveCachedPermission(childPath, READ_ACTIONS,
+                        allPrincipals, userPrincipal, roles)) {
+                    readable.add(childPath);
+                }
+            }
+            return new ReadableChildrenPage(readable, children.hasNext()
+                    ? continuationToken(last) : null);
+        } catch (final AccessDeniedException e) {
+            throw e;
         } catch (final RepositoryException e) {
-            throw new Error("PEP cannot obtain an internal session", e);
+            throw new Error("Cannot list readable children of " + parentPath,
+                    e);
+        }
+    }
+
+    /**
+     * @param child the last child examined on a page
+     * @return the token naming that child
+     * @throws RepositoryException
+     */
+    private static String continuationToken(final Node child)
+        throws RepositoryException {
+        return child.getName() + "[" + child.getIndex() + "]";
+    }
+
+    /**
+     * Validate a continuation token.
+     *
+     * @param token the continuation token
+     * @return the same-name sibling index of the child the token names
+     */
+    private static int tokenIndex(final String token) {
+        final int bracket = token.lastIndexOf('[');
+        int index = 0;
+        if (bracket > 0 && token.endsWith("]")) {
+            try {
+                index =
+                        Integer.parseInt(token.substring(bracket + 1, token
+                                .length() - 1));
+            } catch (final NumberFormatException e) {
+                index = 0;
+            }
+        }
+        if (index < 1 || token.lastIndexOf('/', bracket) >= 0) {
+            throw new IllegalArgumentException("Invalid continuation token: " +
+                    token);
+        }
+        return index;
+    }
+
+    /**
+     * Advance a child iterator past the named child. Only names are
+     * compared, so the children skipped are not checked.
+     *
+     * @param children the parent's children
+     * @param name the name of the child
+     * @param index the same-name sibling index of the child
+     * @throws RepositoryException
+     */
+    private static void seekPast(final NodeIterator children,
+            final String name, final int index) throws RepositoryException {
+        while (children.hasNext()) {
+            final Node child = children.nextNode();
+            if (child.getIndex() == index && name.equals(child.getName())) {
+                return;
+            }
         }
-        return new PathIterator(session, paths,
-                userPrincipal, allPrincipals);
+    }
+
+    /**
+     * Compare a child to the child named by a continuation token, by name
+     * and then by same-name sibling index.
+     */
+    private static int compareToToken(final Node child, final String name,
+            final int index) throws RepositoryException {
+        final int byName = child.getName().compareTo(name);
+        return byName != 0 ? byName : child.getIndex() - index;
     }
 
     /**
@@ -129,17 +569,88 @@ public abstract class AbstractRolesPEP implements FedoraPolicyEnforcementPoint {
         return roles;
     }
 
+    /**
+     * Gather effective roles from a compiled ACL. Role resolution is usually a
+     * bitwise OR over the role masks of the matching principals.
+     *
+     * @param acl the compiled ACL
+     * @param principals effective principals
+     * @return set of effective content roles
+     */
+    public static Set<String> resolveUserRoles(final CompiledAcl acl,
+            final Set<Principal> principals) {
+        if (acl.isEmpty()) {
+            return EMPTY_ROLES;
+        }
+        return acl.resolve(PrincipalContext.of(principals));
+    }
+
     @Override
     public boolean hasModeShapePermission(final Path absPath,
             final String[] actions, final Set<Principal> allPrincipals,
             final Principal userPrincipal) {
+        if (PermissionCheckGuard.isActive()) {
+            // ACL reads use the internal session, which is not subject to
+            // authorization, so a nested check comes from other code running
+            // on this thread and is decided like any other
+            metrics.markReentrant();
+            if (PermissionCheckGuard.depth() >= MAX_NESTED_CHECKS) {
+                log.error("Permission checks nested too deeply, denying {} " +
+                        "on {}", Arrays.toString(actions), absPath);
+                return false;
+            }
+        }
+        final long start = System.nanoTime();
+        PermissionCheckGuard.enter();
+        try {
+            final boolean decision =
+                    memoizedModeShapePermission(absPath, actions,
+                            allPrincipals, userPrincipal);
+            metrics.markDecision(actions, decision);
+            return decision;
+        } finally {
+            PermissionCheckGuard.exit();
+            metrics.updateDecisionTime(start);
+        }
+    }
+
+    private boolean memoizedModeShapePermission(final Path absPath,
+            final String[] actions, final Set<Principal> allPrincipals,
+            final Principal userPrincipal) {
+        final PermissionDecisionMemo memo =
+                PermissionDecisionMemo.current(this);
+        if (memo == null) {
+            return decideModeShapePermission(absPath, actions, allPrincipals,
+                    userPrincipal);
+        }
+        final long generation = accessRolesProvider.getGeneration();
+        memoLookups.incrementAndGet();
+        final Boolean memoized =
+                memo.get(absPath, actions, allPrincipals, userPrincipal,
+                        generation);
+        if (memoized != null) {
+            memoHits.incrementAndGet();
+            return memoized;
+        }
+        final boolean decision =
+                decideModeShapePermission(absPath, actions, allPrincipals,
+                        userPrincipal);
+        memo.put(absPath, actions, allPrincipals, userPrincipal, generation,
+                decision);
+        return decision;
+    }
+
+    private boolean decideModeShapePermission(final Path absPath,
+            final String[] actions, final Set<Principal> allPrincipals,
+            final Principal userPrincipal) {
         final boolean newNode = false;
         Set<String> roles = null;
-        JcrSession session = null;
+        Session session = null;
         try {
-            session = (JcrSession)sessionFactory.getInternalSession();
-            final Map<String, List<String>> acl =
-                    accessRolesProvider.findRolesForPath(absPath, session);
+            session = getInternalSession();
+            final CompiledAcl acl =
+                    accessRolesProvider.findCompiledAclForPath(absPath,
+                            session);
             roles = resolveUserRoles(acl, allPrincipals);
             log.debug("roles for this request: {}", roles);
         } catch (final RepositoryException e) {
@@ -165,17 +676,33 @@ public abstract class AbstractRolesPEP implements FedoraPolicyEnforcementPoint {
             // itself.
             return true;
         }
-        if (!rolesHaveModeShapePermission(absPath.toString(), actions,
+        if (!rolesHaveCachedPermission(absPath, actions,
                 allPrincipals,
                 userPrincipal, roles)) {
             return false;
         }
         if (actions.length == 1 && "remove".equals(actions[0])) {
             // you must be able to delete all the children
-            // TODO make recursive/ACL-query-based check configurable
-            return canRemoveChildrenRecursive(absPath.toString(), session,
-                    allPrincipals,
-                    userPrincipal, roles);
+            final AtomicInteger visited = new AtomicInteger();
+            final long start = System.nanoTime();
+            try {
+                if (removeCheckStrategy == RemoveCheckStrategy.ACL_QUERY) {
+                    return canRemoveAclDescendants(absPath.toString(),
+                            session, allPrincipals, userPrincipal, roles,
+                            visited);
+                }
+                if (removeCheckStrategy == RemoveCheckStrategy.PARALLEL) {
+                    return getRemoveCheckPool().invoke(
+                            new RemoveCheckTask(absPath.toString(), roles,
+                                    allPrincipals, userPrincipal,
+                                    new AtomicBoolean(), visited));
+                }
+                return canRemoveChildrenRecursive(absPath.toString(), session,
+                        allPrincipals, userPrincipal, roles, visited);
+            } finally {
+                metrics.updateRemoveCheckTime(start);
+                metrics.updateRemoveCheckNodesVisited(visited.get());
+            }
         } else {
             return true;
         }
@@ -189,8 +716,9 @@ public abstract class AbstractRolesPEP implements FedoraPolicyEnforcementPoint {
      * @return
      */
     private boolean canRemoveChildrenRecursive(final String parentPath,
-            final JcrSession session, final Set<Principal> allPrincipals,
-            final Principal userPrincipal, final Set<String> parentRoles) {
+            final Session session, final Set<Principal> allPrincipals,
+            final Principal userPrincipal, final Set<String> parentRoles,
+            final AtomicInteger visited) {
         try {
             log.debug("Recursive child remove permission checks for: {}",
                     parentPath);
@@ -201,6 +729,7 @@ public abstract class AbstractRolesPEP implements FedoraPolicyEnforcementPoint {
             final NodeIterator ni = parent.getNodes();
             while (ni.hasNext()) {
                 final Node n = ni.nextNode();
+                visited.incrementAndGet();
                 // are there unique roles?
                 Set<String> roles = null;
                 Map<String, List<String>> acl = null;
@@ -213,11 +742,12 @@ public abstract class AbstractRolesPEP implements FedoraPolicyEnforcementPoint {
                 } else {
                     roles = parentRoles;
                 }
-                if (rolesHaveModeShapePermission(n.getPath(), REMOVE_ACTIONS,
-                        allPrincipals, userPrincipal, roles)) {
+                if (rolesHaveCachedPermission(AclPathIndex.toPath(session, n
+                        .getPath()), REMOVE_ACTIONS, allPrincipals,
+                        userPrincipal, roles)) {
 
                     if (!canRemoveChildrenRecursive(n.getPath(), session,
-                            allPrincipals, userPrincipal, roles)) {
+                            allPrincipals, userPrincipal, roles, visited)) {
                         return false;
                     }
                 } else {
@@ -234,6 +764,193 @@ public abstract class AbstractRolesPEP implements FedoraPolicyEnforcementPoint {
         }
     }
 
+    /**
+     * Checks remove permission only on the rbaclAssignable nodes beneath the
+     * parent, found with a JCR-SQL2 query, and on their ACL nodes, as well as
+     * on the parent's own ACL node. Stops at the first denial.
+     *
+     * @param parentPath the path of the node being removed
+     * @param session the internal session
+     * @param allPrincipals
+     * @param userPrincipal
+     * @param parentRoles the effective roles on the node being removed
+     * @param visited counts the ACL-bearing descendants checked
+     * @return true if every ACL-bearing descendant may be removed
+     */
+    private boolean canRemoveAclDescendants(final String parentPath,
+            final Session session, final Set<Principal> allPrincipals,
+            final Principal userPrincipal, final Set<String> parentRoles,
+            final AtomicInteger visited) {
+        try {
+            log.debug("ACL query child remove permission checks for: {}",
+                    parentPath);
+            final Node parent = session.getNode(parentPath);
+            final String parentJcrPath = parent.getPath();
+            if (parent.isNodeType(JcrName.rbaclAssignable.getExpanded()) &&
+                    !rolesHaveCachedPermission(AclPathIndex
+                            .toAclNodePath(AclPathIndex.toPath(session,
+                                    parentJcrPath)), REMOVE_ACTIONS,
+                            allPrincipals, userPrincipal, parentRoles)) {
+                log.info("Remove permission denied at the ACL of {}",
+                        parentJcrPath);
+                return false;
+            }
+            final QueryManager queryManager =
+                    session.getWorkspace().getQueryManager();
+            final String sql =
+                    "SELECT [jcr:path] FROM [" +
+                            JcrName.rbaclAssignable.getExpanded() +
+                            "] AS acl WHERE ISDESCENDANTNODE(acl, '" +
+                            parentJcrPath.replace("'", "''") + "')";
+            final Query query = queryManager.createQuery(sql, Query.JCR_SQL2);
+            final NodeIterator ni = query.execute().getNodes();
+            while (ni.hasNext()) {
+                final Node n = ni.nextNode();
+                visited.incrementAndGet();
+                final Set<String> roles =
+                        resolveUserRoles(accessRolesProvider.getRoles(n, false),
+                                allPrincipals);
+                final Path nodePath = AclPathIndex.toPath(session, n.getPath());
+                if (!rolesHaveCachedPermission(nodePath, REMOVE_ACTIONS,
+                        allPrincipals, userPrincipal, roles) ||
+                        !rolesHaveCachedPermission(AclPathIndex
+                                .toAclNodePath(nodePath), REMOVE_ACTIONS,
+                                allPrincipals, userPrincipal, roles)) {
+                    log.info("Remove permission denied at {} with roles {}", n
+                            .getPath(), roles);
+                    return false;
+                }
+            }
+            return true;
+        } catch (final RepositoryException e) {
+            throw new Error(
+                    "Cannot lookup child permission check information for " +
+                            parentPath, e);
+        }
+    }
+
+    /**
+     * Checks remove permission on every node beneath a path. Nodes are
+     * visited from an explicit stack; while the pool has idle threads, the
+     * subtrees of child nodes are forked as new tasks instead of being
+     * pushed. Every task reads with the internal session of the pool thread
+     * running it, and all tasks of one check share a flag that stops them as
+     * soon as any of them finds a denial.
+     */
+    private class RemoveCheckTask extends RecursiveTask<Boolean> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String rootPath;
+
+        private final Set<String> rootRoles;
+
+        private final Set<Principal> allPrincipals;
+
+        private final Principal userPrincipal;
+
+        private final AtomicBoolean denied;
+
+        private final AtomicInteger visited;
+
+        RemoveCheckTask(final String rootPath, final Set<String> rootRoles,
+                final Set<Principal> allPrincipals,
+                final Principal userPrincipal, final AtomicBoolean denied,
+                final AtomicInteger visited) {
+            this.rootPath = rootPath;
+            this.rootRoles = rootRoles;
+            this.allPrincipals = allPrincipals;
+            this.userPrincipal = userPrincipal;
+            this.denied = denied;
+            this.visited = visited;
+        }
+
+        @Override
+        protected Boolean compute() {
+            final Deque<String> paths = new ArrayDeque<String>();
+            final Deque<Set<String>> roleSets = new ArrayDeque<Set<String>>();
+            final List<RemoveCheckTask> forked =
+                    new ArrayList<RemoveCheckTask>();
+            paths.push(rootPath);
+            roleSets.push(rootRoles);
+            try {
+                final Session session = getInternalSession();
+                while (!paths.isEmpty()) {
+                    final String parentPath = paths.pop();
+                    final Set<String> parentRoles = roleSets.pop();
+                    final NodeIterator ni =
+                            session.getNode(parentPath).getNodes();
+                    while (ni.hasNext()) {
+                        if (denied.get()) {
+                            return deny(forked);
+                        }
+                        final Node n = ni.nextNode();
+                        visited.incrementAndGet();
+                        final String path = n.getPath();
+                        final Path nodePath =
+                                AclPathIndex.toPath(session, path);
+                        Set<String> roles = parentRoles;
+                        if (n.isNodeType(JcrName.rbaclAssignable
+                                .getExpanded())) {
+                            final CompiledAcl acl =
+                                    accessRolesProvider
+                                            .getCompiledAclForAclPath(
+                                                    nodePath, session);
+                            roles = resolveUserRoles(acl, allPrincipals);
+                        }
+                        if (!rolesHaveCachedPermission(nodePath,
+                                REMOVE_ACTIONS, allPrincipals, userPrincipal,
+                                roles)) {
+                            log.info("Remove permission denied at {} " +
+                                    "with roles {}", path, roles);
+                            return deny(forked);
+                        }
+                        if (!n.hasNodes()) {
+                            continue;
+                        }
+                        if (getSurplusQueuedTaskCount() < 2) {
+                            final RemoveCheckTask task =
+                                    new RemoveCheckTask(path, roles,
+                                            allPrincipals, userPrincipal,
+                                            denied, visited);
+                            task.fork();
+                            forked.add(task);
+                        } else {
+                            paths.push(path);
+                            roleSets.push(roles);
+                        }
+                    }
+                }
+            } catch (final RepositoryException e) {
+                deny(forked);
+                throw new Error(
+                        "Cannot lookup child permission check information for " +
+                                rootPath, e);
+            }
+            for (final RemoveCheckTask task : forked) {
+                if (denied.get() || !task.join()) {
+                    return deny(forked);
+                }
+            }
+            return !denied.get();
+        }
+
+        /**
+         * Stop every task of the check: the flag stops running tasks at
+         * their next node, and forked tasks not yet started are cancelled
+         * rather than left queued. Cancelled tasks are never joined.
+         *
+         * @return false
+         */
+        private boolean deny(final List<RemoveCheckTask> forked) {
+            denied.set(true);
+            for (final RemoveCheckTask task : forked) {
+                task.cancel(false);
+            }
+            return false;
+        }
+    }
+
     /**
      * Subclasses must override this method to determine permissions based on
      * supplied roles.
@@ -249,9 +966,182 @@ public abstract class AbstractRolesPEP implements FedoraPolicyEnforcementPoint {
             String[] actions, Set<Principal> allPrincipals,
             Principal userPrincipal, Set<String> roles);
 
+    /**
+     * Determine permissions for a path that is available as a ModeShape Path.
+     * By default this delegates to the String form; subclasses may override
+     * it to inspect the path segments without converting the path to a
+     * string.
+     *
+     * @param absPath path to the object
+     * @param actions requested action
+     * @param userPrincipal
+     * @param allPrincipals
+     * @param roles effective roles for this request and content
+     * @return true if role has permission
+     */
+    public boolean rolesHaveModeShapePermission(final Path absPath,
+            final String[] actions, final Set<Principal> allPrincipals,
+            final Principal userPrincipal, final Set<String> roles) {
+        return rolesHaveModeShapePermission(absPath.toString(), actions,
+                allPrincipals, userPrincipal, roles);
+    }
+
+    /**
+     * Determine permissions on a set of roles, answering from the decision
+     * cache when one is configured.
+     *
+     * @param absPath path to the object
+     * @param actions requested action
+     * @param allPrincipals
+     * @param userPrincipal
+     * @param roles effective roles for this request and content
+     * @return true if role has permission
+     */
+    public boolean rolesHaveCachedPermission(final String absPath,
+            final String[] actions, final Set<Principal> allPrincipals,
+            final Principal userPrincipal, final Set<String> roles) {
+        final DecisionCache cache = decisionCache;
+        if (cache == null) {
+            return rolesHaveModeShapePermission(absPath, actions,
+                    allPrincipals, userPrincipal, roles);
+        }
+        final DecisionKey key =
+                decisionKey(absPath, actions, userPrincipal, roles);
+        final Boolean cached = cache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        UNCACHEABLE.remove();
+        final boolean decision =
+                rolesHaveModeShapePermission(absPath, actions, allPrincipals,
+                        userPrincipal, roles);
+        cacheDecision(cache, key, decision);
+        return decision;
+    }
+
+    /**
+     * Determine permissions on a set of roles for a path that is available
+     * as a ModeShape Path, answering from the decision cache when one is
+     * configured.
+     *
+     * @param absPath path to the object
+     * @param actions requested action
+     * @param allPrincipals
+     * @param userPrincipal
+     * @param roles effective roles for this request and content
+     * @return true if role has permission
+     */
+    public boolean rolesHaveCachedPermission(final Path absPath,
+            final String[] actions, final Set<Principal> allPrincipals,
+            final Principal userPrincipal, final Set<String> roles) {
+        final DecisionCache cache = decisionCache;
+        if (cache == null) {
+            return rolesHaveModeShapePermission(absPath, actions,
+                    allPrincipals, userPrincipal, roles);
+        }
+        final DecisionKey key =
+                decisionKey(absPath.toString(), actions, userPrincipal, roles);
+        final Boolean cached = cache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        UNCACHEABLE.remove();
+        final boolean decision =
+                rolesHaveModeShapePermission(absPath, actions, allPrincipals,
+                        userPrincipal, roles);
+        cacheDecision(cache, key, decision);
+        return decision;
+    }
+
+    private DecisionKey decisionKey(final String absPath,
+            final String[] actions, final Principal userPrincipal,
+            final Set<String> roles) {
+        // read the version before deciding, so that a decision made under
+        // rules that have just been replaced is never tagged as current
+        return new DecisionKey(getDecisionCacheNamespace(),
+                getDecisionCacheVersion(), getDecisionCacheResource(absPath),
+                actions, userPrincipal == null ? null : userPrincipal
+                        .getName(), roles);
+    }
+
+    private static void cacheDecision(final DecisionCache cache,
+            final DecisionKey key, final boolean decision) {
+        if (UNCACHEABLE.get() == null) {
+            cache.put(key, decision);
+        } else {
+            UNCACHEABLE.remove();
+        }
+    }
+
+    /**
+     * Called by subclasses from within rolesHaveModeShapePermission when the
+     * decision being made must not be cached, for instance because it
+     * carries obligations that have to be met on every request.
+     */
+    protected static void markDecisionUncacheable() {
+        UNCACHEABLE.set(Boolean.TRUE);
+    }
+
+    /**
+     * Test whether a path string names an access roles node, accepting both
+     * the expanded form of ModeShape paths and the prefixed form of JCR
+     * paths.
+     *
+     * @param absPath path to the object
+     * @return true if a segment of the path is in the access roles namespace
+     */
+    protected static boolean isAclPath(final String absPath) {
+        return absPath.contains(AUTHZ_DETECTION) ||
+                absPath.contains(AUTHZ_PREFIX_DETECTION);
+    }
+
+    /**
+     * Get the namespace of this PEP's cached decisions, which keeps them apart
+     * from the decisions of other PEPs using the same cache. The default is
+     * unique to this instance, since two instances of one class may be
+     * configured with different rules.
+     *
+     * @return the namespace of the decision cache keys
+     */
+    protected String getDecisionCacheNamespace() {
+        return decisionCacheNamespace;
+    }
+
+    /**
+     * Get the version of the rules that decisions are made by. Cached
+     * decisions tagged with another version are not used. Subclasses whose
+     * rules can change at runtime should override this; the default is a
+     * constant, since the roles are already part of every cached decision.
+     *
+     * @return the version of the decision rules
+     */
+    protected long getDecisionCacheVersion() {
+        return 0;
+    }
+
+    /**
+     * Get the part of a path that decisions depend on. By default this is
+     * the whole path; subclasses may return something coarser so that
+     * decisions are shared across paths.
+     *
+     * @param absPath path to the object
+     * @return the resource used in decision cache keys
+     */
+    protected Object getDecisionCacheResource(final String absPath) {
+        return absPath;
+    }
+
+    /**
+     * Filters paths for reading. Paths are pulled from the wrapped iterator in
+     * windows of {@code batchSize}; within a window the paths are grouped by
+     * their governing ACL node, so each ACL is resolved once, and the readable
+     * paths are then returned in their original order. Unless a session is
+     * given, each window is read with the internal session of the thread
+     * consuming the iterator.
+     */
     public class PathIterator implements Iterator<Path> {
 
-        private Path next = null;
+        private final Deque<Path> ready = new ArrayDeque<Path>();
 
         private Session session = null;
 
@@ -261,6 +1151,8 @@ public abstract class AbstractRolesPEP implements FedoraPolicyEnforcementPoint {
 
         private Set<Principal> principals = null;
 
+        private int batchSize = 1;
+
         /**
          * @param session
          * @param paths
@@ -269,26 +1161,51 @@ public abstract class AbstractRolesPEP implements FedoraPolicyEnforcementPoint {
         public PathIterator(final Session session,
                 final Iterator<Path> paths, final Principal userPrincipal,
                 final Set<Principal> allPrincipals) {
+            this(session, paths, userPrincipal, allPrincipals, 1);
+        }
+
+        /**
+         * @param paths
+         * @param allPrincipals
+         * @param batchSize the number of paths to evaluate together
+         */
+        public PathIterator(final Iterator<Path> paths,
+                final Principal userPrincipal,
+                final Set<Principal> allPrincipals, final int batchSize) {
+            this(null, paths, userPrincipal, allPrincipals, batchSize);
+        }
+
+        /**
+         * @param session the session to read with, or null for the internal
+         *        session of the consuming thread
+         * @param paths
+         * @param allPrincipals
+         * @param batchSize the number of paths to evaluate together
+         */
+        public PathIterator(final Session session,
+                final Iterator<Path> paths, final Principal userPrincipal,
+                final Set<Principal> allPrincipals, final int batchSize) {
             this.wrapped = paths;
             this.session = session;
             this.userPrincipal = userPrincipal;
             this.principals = allPrincipals;
+            this.batchSize = Math.max(1, batchSize);
         }
 
         @Override
         public boolean hasNext() {
-            if (next == null) {
+            if (ready.isEmpty()) {
                 findNext();
             }
-            return next != null;
+            return !ready.isEmpty();
         }
 
         @Override
         public Path next() {
-            if (next == null) {
-                findNext();
+            if (!hasNext()) {
+                throw new NoSuchElementException();
             }
-            return next;
+            return ready.poll();
         }
 
         @Override
@@ -298,18 +1215,55 @@ public abstract class AbstractRolesPEP implements FedoraPolicyEnforcementPoint {
         }
 
         private void findNext() {
-            while (wrapped.hasNext()) {
-                final Path p = wrapped.next();
-                // lookup roles
+            final List<Path> window = new ArrayList<Path>(batchSize);
+            while (ready.isEmpty() && wrapped.hasNext()) {
+                window.clear();
+                while (window.size() < batchSize && wrapped.hasNext()) {
+                    window.add(wrapped.next());
+                }
+                final long start = System.nanoTime();
+                try {
+                    filterWindow(window);
+                } finally {
+                    metrics.updateFilterTime(start);
+                }
+            }
+        }
+
+        private void filterWindow(final List<Path> window) {
+            final Session session;
+            try {
+                session =
+                        this.session == null ? getInternalSession()
+                                : this.session;
+            } catch (final RepositoryException e) {
+                throw new Error("PEP cannot obtain an internal session", e);
+            }
+            final Map<Path, Set<String>> rolesByAcl =
+                    new HashMap<Path, Set<String>>();
+            for (final Path p : window) {
+                // lookup roles, once per governing ACL
                 try {
-                    final Map<String, List<String>> acl =
-                            accessRolesProvider.findRolesForPath(p, session);
-                    final Set<String> roles = resolveUserRoles(acl, principals);
-                    if (rolesHaveModeShapePermission(p.getString(),
+                    final Path aclPath =
+                            accessRolesProvider.findGoverningAclPath(p,
+                                    session);
+                    Set<String> roles = null;
+                    if (aclPath == null) {
+                        roles = EMPTY_ROLES;
+                    } else {
+                        roles = rolesByAcl.get(aclPath);
+                        if (roles == null) {
+                            roles =
+                                    resolveUserRoles(accessRolesProvider
+                                            .getCompiledAclForAclPath(aclPath,
+                                                    session), principals);
+                            rolesByAcl.put(aclPath, roles);
+                        }
+                    }
+                    if (rolesHaveCachedPermission(p,
                             READ_ACTIONS,
                             principals, userPrincipal, roles)) {
-                        next = p;
-                        break;
+                        ready.add(p);
                     }
                 } catch (final RepositoryException e) {
                     throw new Error("Cannot look up node information on " + p +
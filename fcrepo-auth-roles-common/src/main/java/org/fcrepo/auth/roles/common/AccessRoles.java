@@ -18,9 +18,16 @@ package org.fcrepo.auth.roles.common;
 
 import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
 
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 import javax.jcr.AccessDeniedException;
 import javax.jcr.Node;
@@ -36,8 +43,11 @@ import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.CacheControl;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.PathSegment;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 import javax.ws.rs.core.UriInfo;
@@ -76,6 +86,21 @@ public class AccessRoles extends AbstractResource {
     @Context
     protected HttpServletRequest request;
 
+    @Context
+    protected Request restRequest;
+
+    /**
+     * Clients may keep roles but must revalidate them with the entity tag
+     * before each use.
+     */
+    private static final CacheControl REVALIDATE = new CacheControl();
+
+    static {
+        REVALIDATE.setPrivate(true);
+        REVALIDATE.setMustRevalidate(true);
+        REVALIDATE.setMaxAge(0);
+    }
+
 
     /**
      * @return the accessRolesProvider
@@ -86,6 +111,9 @@ public class AccessRoles extends AbstractResource {
 
     /**
      * Retrieve the roles assigned to each principal on this specific path.
+     * Effective roles are served from the provider's caches. Responses carry
+     * an entity tag derived from the governing ACL, and a matching
+     * If-None-Match is answered with 304 Not Modified.
      *
      * @param pathList
      * @return JSON representation of assignment map
@@ -103,14 +131,47 @@ public class AccessRoles extends AbstractResource {
         Response.ResponseBuilder response;
         try {
             final Node node = nodeService.getObject(session, path).getNode();
-            final Map<String, List<String>> data =
-                    this.getAccessRolesProvider().getRoles(node,
-                            (effective != null));
+            final Map<String, List<String>> data;
+            final String aclPath;
+            if (effective != null) {
+                final org.modeshape.jcr.value.Path governing =
+                        getAccessRolesProvider().findGoverningAclPath(
+                                AclPathIndex.toPath(session, node.getPath()),
+                                session);
+                if (governing == null) {
+                    aclPath = "";
+                    data = AccessRolesProvider.DEFAULT_ACCESS_ROLES;
+                } else {
+                    // the roles come from caches shared by all users, so
+                    // check that the caller could read the ACL itself
+                    final String rbaclPath =
+                            AclPathIndex.toJcrPath(session, AclPathIndex
+                                    .toAclNodePath(governing));
+                    if (!session.hasPermission(rbaclPath, "read")) {
+                        throw new AccessDeniedException(
+                                "Cannot read access roles at " + rbaclPath);
+                    }
+                    aclPath = governing.getString();
+                    data =
+                            getAccessRolesProvider().getRolesForAclPath(
+                                    governing, session);
+                }
+            } else {
+                aclPath = node.getPath();
+                data = this.getAccessRolesProvider().getRoles(node, false);
+            }
             if (data == null) {
                 log.debug("no content response");
                 response = Response.noContent();
             } else {
-                response = Response.ok(data);
+                final EntityTag etag = rolesTag(aclPath, data);
+                response = restRequest.evaluatePreconditions(etag);
+                if (response == null) {
+                    response = Response.ok(data).tag(etag);
+                } else {
+                    log.debug("roles unchanged, etag {}", etag);
+                }
+                response.cacheControl(REVALIDATE);
             }
         } catch (final PathNotFoundException e) {
             response = Response.status(404).entity(e.getMessage());
@@ -122,6 +183,35 @@ public class AccessRoles extends AbstractResource {
         return response.build();
     }
 
+    /**
+     * Compute an entity tag from the path of the ACL node the roles come from
+     * and the roles themselves, independent of map and list order.
+     *
+     * @param aclPath the path of the ACL node, or empty for default roles
+     * @param data the roles
+     * @return the entity tag
+     */
+    static EntityTag rolesTag(final String aclPath,
+            final Map<String, List<String>> data) {
+        final StringBuilder canonical = new StringBuilder(aclPath);
+        final Map<String, List<String>> sorted =
+                new TreeMap<String, List<String>>(data);
+        for (final Map.Entry<String, List<String>> entry : sorted.entrySet()) {
+            final List<String> roles = new ArrayList<String>(entry.getValue());
+            Collections.sort(roles);
+            canonical.append('\n').append(entry.getKey()).append('=').append(
+                    roles);
+        }
+        try {
+            final byte[] digest =
+                    MessageDigest.getInstance("MD5").digest(
+                            canonical.toString().getBytes("UTF-8"));
+            return new EntityTag(new BigInteger(1, digest).toString(16));
+        } catch (final NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     /**
      * Apply new role assignments at the specified node.
      *
@@ -140,12 +230,12 @@ public class AccessRoles extends AbstractResource {
         log.debug("POST Received request param: {}", request);
         Response.ResponseBuilder response;
 
-        validatePOST(data);
+        validateAssignments(data, false);
         try {
             final FedoraResource resource =
                     nodeService.getObject(session, path);
             this.getAccessRolesProvider().postRoles(resource.getNode(), data);
-            session.save();
+            this.getAccessRolesProvider().saveRoles(session);
             log.debug("Saved access roles {}", data);
             response =
                     Response.created(getUriInfo().getBaseUriBuilder()
@@ -160,16 +250,61 @@ public class AccessRoles extends AbstractResource {
     }
 
     /**
+     * Merge role assignments into those at the specified node. A principal
+     * mapped to an empty list of roles loses its assignment; principals not
+     * mentioned keep theirs.
+     *
+     * @param pathList
      * @param data
+     * @return
+     * @throws Exception
      */
-    private void validatePOST(final Map<String, Set<String>> data)
-        throws IllegalArgumentException {
+    @PATCH
+    @Consumes(APPLICATION_JSON)
+    @Timed
+    public Response patch(@PathParam("path")
+        final List<PathSegment> pathList, final Map<String, Set<String>> data)
+        throws Exception {
+        final String path = toPath(pathList);
+        Response.ResponseBuilder response;
+
+        validateAssignments(data, true);
+        try {
+            final FedoraResource resource =
+                    nodeService.getObject(session, path);
+            this.getAccessRolesProvider().patchRoles(resource.getNode(), data);
+            this.getAccessRolesProvider().saveRoles(session);
+            log.debug("Patched access roles {}", data);
+            response = Response.noContent();
+        } catch (final AccessDeniedException e) {
+            response = Response.status(Status.FORBIDDEN);
+        } finally {
+            session.logout();
+        }
+
+        return response.build();
+    }
+
+    /**
+     * Validate role assignments sent by a client.
+     *
+     * @param data the roles to assign per principal
+     * @param allowEmptyRoles true if a principal may be mapped to no roles,
+     *        as when a patch removes its assignment
+     */
+    static void validateAssignments(final Map<String, Set<String>> data,
+            final boolean allowEmptyRoles) throws IllegalArgumentException {
         if (data.isEmpty()) {
             throw new IllegalArgumentException(
-                    "Posted access roles must include role assignments");
+                    "Access roles must include role assignments");
         }
         for (final String key : data.keySet()) {
-            if (key == null || data.get(key) == null || data.get(key).isEmpty()) {
+            final Set<String> roles = data.get(key);
+            if (key == null || roles == null) {
+                throw new IllegalArgumentException(
+                        "Assignments must include principal name and a list of roles");
+            }
+            if (roles.isEmpty() && !allowEmptyRoles) {
                 throw new IllegalArgumentException(
                         "Assignments must include principal name and one or more roles");
             }
@@ -177,8 +312,8 @@ public class AccessRoles extends AbstractResource {
                 throw new IllegalArgumentException(
                         "Principal names cannot be an empty strings or whitespace.");
             }
-            for (final String r : data.get(key)) {
-                if (r.trim().length() == 0) {
+            for (final String r : roles) {
+                if (r == null || r.trim().length() == 0) {
                     throw new IllegalArgumentException(
                             "Role names cannot be an empty strings or whitespace.");
                 }
@@ -197,7 +332,7 @@ public class AccessRoles extends AbstractResource {
         try {
             final Node node = nodeService.getObject(session, path).getNode();
             this.getAccessRolesProvider().deleteRoles(node);
-            session.save();
+            this.getAccessRolesProvider().saveRoles(session);
             return Response.noContent().build();
         } catch (final AccessDeniedException e) {
             return Response.status(Status.FORBIDDEN).build();
@@ -0,0 +1,278 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.AccessDeniedException;
+import javax.jcr.Node;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.type.TypeReference;
+import org.fcrepo.http.commons.AbstractResource;
+import org.fcrepo.http.commons.session.InjectedSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Scope;
+import org.springframework.stereotype.Component;
+
+import com.codahale.metrics.annotation.Timed;
+
+/**
+ * RESTful interface to assign access roles on many paths in one request. The
+ * body is a JSON object mapping each path to its role assignments, in the
+ * form accepted by {@link AccessRoles#post}. It is read as a stream and the
+ * assignments are saved in chunks, so very large batches use constant
+ * memory. The response is a JSON object mapping each path to its result,
+ * written as each chunk is saved.
+ */
+@Component
+@Scope("prototype")
+@Path("/fcr:accessRoles/batch")
+public class AccessRolesBatch extends AbstractResource {
+
+    private static final Logger log = LoggerFactory
+            .getLogger(AccessRolesBatch.class);
+
+    public static final String RESULT_OK = "ok";
+
+    public static final String RESULT_NOT_FOUND = "not found";
+
+    public static final String RESULT_FORBIDDEN = "forbidden";
+
+    private static final JsonFactory JSON = new ObjectMapper().getJsonFactory();
+
+    private static final TypeReference<Map<String, Set<String>>> ASSIGNMENTS =
+            new TypeReference<Map<String, Set<String>>>() {
+            };
+
+    @InjectedSession
+    protected Session session;
+
+    @Autowired
+    private AccessRolesProvider accessRolesProvider = null;
+
+    /**
+     * Apply role assignments to many paths.
+     *
+     * @param chunkSize the number of paths to save at once
+     * @param body the JSON object of paths and assignments
+     * @return the per-path results
+     * @throws IOException if the body cannot be read
+     */
+    @POST
+    @Consumes(APPLICATION_JSON)
+    @Produces(APPLICATION_JSON)
+    @Timed
+    public Response post(@QueryParam("chunkSize")
+        @DefaultValue("500")
+        final int chunkSize, final InputStream body) throws IOException {
+        final JsonParser parser;
+        try {
+            if (chunkSize < 1) {
+                throw new IllegalArgumentException(
+                        "chunkSize must be positive");
+            }
+            parser = JSON.createJsonParser(body);
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IllegalArgumentException(
+                        "Expected a JSON object of paths");
+            }
+        } catch (final IllegalArgumentException | IOException e) {
+            session.logout();
+            throw e;
+        }
+        final StreamingOutput results = new StreamingOutput() {
+
+            @Override
+            public void write(final OutputStream out) throws IOException {
+                try {
+                    apply(parser, out, chunkSize);
+                } finally {
+                    session.logout();
+                }
+            }
+        };
+        return Response.ok(results).build();
+    }
+
+    private void apply(final JsonParser parser, final OutputStream out,
+            final int chunkSize) throws IOException {
+        final JsonGenerator results =
+                JSON.createJsonGenerator(out, JsonEncoding.UTF8);
+        results.writeStartObject();
+        final Map<String, Map<String, Set<String>>> pending =
+                new LinkedHashMap<String, Map<String, Set<String>>>();
+        try {
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String path = parser.getCurrentName();
+                if (parser.nextToken() != JsonToken.START_OBJECT) {
+                    parser.skipChildren();
+                    results.writeStringField(path,
+                            "invalid: Assignments must be a JSON object");
+                    continue;
+                }
+                final Map<String, Set<String>> data =
+                        parser.readValueAs(ASSIGNMENTS);
+                final String result = assign(path, data, pending, results);
+                if (result == null) {
+                    pending.put(path, data);
+                    if (pending.size() == chunkSize) {
+                        saveChunk(pending, results);
+                    }
+                } else {
+                    results.writeStringField(path, result);
+                }
+            }
+            saveChunk(pending, results);
+        } catch (final IOException e) {
+            log.warn("Aborting access roles batch, discarding {} unsaved paths",
+                    pending.size(), e);
+            discard();
+            throw e;
+        } catch (final RuntimeException e) {
+            discard();
+            throw e;
+        } finally {
+            results.writeEndObject();
+            results.flush();
+        }
+    }
+
+    /**
+     * Stage the assignments on one path. If staging fails part way, every
+     * unsaved change is discarded and the pending paths are staged again, so
+     * that no partial assignment is saved with the chunk.
+     *
+     * @return null if staged, otherwise the failure result
+     */
+    private String assign(final String path,
+            final Map<String, Set<String>> data,
+            final Map<String, Map<String, Set<String>>> pending,
+            final JsonGenerator results) throws IOException {
+        final Node node;
+        try {
+            AccessRoles.validateAssignments(data, false);
+            node = nodeService.getObject(session, path).getNode();
+        } catch (final IllegalArgumentException e) {
+            return "invalid: " + e.getMessage();
+        } catch (final RepositoryException e) {
+            return failure(path, e);
+        }
+        try {
+            accessRolesProvider.postRoles(node, data);
+            return null;
+        } catch (final RepositoryException e) {
+            restage(pending, results);
+            return failure(path, e);
+        }
+    }
+
+    /**
+     * Discard every unsaved change and stage the pending paths again. A path
+     * that now fails is reported, dropped from the chunk and the remaining
+     * paths are staged once more.
+     */
+    private void restage(final Map<String, Map<String, Set<String>>> pending,
+            final JsonGenerator results) throws IOException {
+        discard();
+        for (final Iterator<Map.Entry<String, Map<String, Set<String>>>> it =
+                pending.entrySet().iterator(); it.hasNext();) {
+            final Map.Entry<String, Map<String, Set<String>>> entry =
+                    it.next();
+            try {
+                accessRolesProvider.postRoles(nodeService.getObject(session,
+                        entry.getKey()).getNode(), entry.getValue());
+            } catch (final RepositoryException e) {
+                it.remove();
+                results.writeStringField(entry.getKey(), failure(entry
+                        .getKey(), e));
+                restage(pending, results);
+                return;
+            }
+        }
+    }
+
+    private static String failure(final String path,
+            final RepositoryException e) {
+        if (e instanceof PathNotFoundException) {
+            return RESULT_NOT_FOUND;
+        }
+        if (e instanceof AccessDeniedException) {
+            return RESULT_FORBIDDEN;
+        }
+        log.warn("Cannot assign access roles on " + path, e);
+        return "failed: " + e.getMessage();
+    }
+
+    private void saveChunk(
+            final Map<String, Map<String, Set<String>>> pending,
+            final JsonGenerator results) throws IOException {
+        if (pending.isEmpty()) {
+            return;
+        }
+        String result = RESULT_OK;
+        try {
+            accessRolesProvider.saveRoles(session);
+            log.debug("Saved access roles on {} paths", pending.size());
+        } catch (final AccessDeniedException e) {
+            result = RESULT_FORBIDDEN;
+            discard();
+        } catch (final RepositoryException e) {
+            log.warn("Cannot save access roles chunk", e);
+            result = "failed: " + e.getMessage();
+            discard();
+        }
+        for (final String path : pending.keySet()) {
+            results.writeStringField(path, result);
+        }
+        pending.clear();
+        results.flush();
+    }
+
+    private void discard() {
+        try {
+            session.refresh(false);
+        } catch (final RepositoryException e) {
+            log.warn("Cannot discard unsaved access roles", e);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.auth.roles.common;
+
+import static javax.jcr.observation.Event.NODE_ADDED;
+import static javax.jcr.observation.Event.NODE_MOVED;
+import static javax.jcr.observation.Event.NODE_REMOVED;
+import static javax.jcr.observation.Event.PROPERTY_ADDED;
+import static javax.jcr.observation.Event.PROPERTY_CHANGED;
+import static javax.jcr.observation.Event.PROPERTY_REMOVED;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+
+import org.fcrepo.auth.roles.common.Constants.JcrName;
+import org.fcrepo.http.commons.session.SessionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Invalidates the effective roles caches of the AccessRolesProvider and keeps
+ * its ACL path index current when saved changes touch access roles nodes, or
+ * when removed or moved nodes carried ACLs. Removing or moving ordinary
+ * content leaves the caches alone.
+ */
+@Component
+public class AccessRolesChangeListener implements EventListener {
+
+    private static final Logger log = LoggerFactory
+            .getLogger(AccessRolesChangeListener.class);
+
+    private static final int EVENT_TYPES = NODE_ADDED | NODE_REMOVED |
+            NODE_MOVED | PROPERTY_ADDED | PROPERTY_CHANGED | PROPERTY_REMOVED;
+
+    private static final String AUTHZ_SEGMENT = "/" + JcrName.NS_PREFIX + ":";
+
+    @Autowired
+    private SessionFactory sessionFactory = null;
+
+    @Autowired
+    private AccessRolesProvider accessRolesProvider = null;
+
+    private Session session = null;
+
+    /**
+     * @param sessionFactory the sessionFactory to set
+     */
+    public void setSessionFactory(final SessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+    }
+
+    /**
+     * @param accessRolesProvider the accessRolesProvider to set
+     */
+    public void setAccessRolesProvider(
+            final AccessRolesProvider accessRolesProvider) {
+        this.accessRolesProvider = accessRolesProvider;
+    }
+
+    /**
+     * Register this listener with the repository.
+     *
+     * @throws RepositoryException
+     */
+    @PostConstruct
+    public void register() throws RepositoryException {
+        session = sessionFactory.getInternalSession();
+        session.getWorkspace().getObservationManager().addEventListener(this,
+                EVENT_TYPES, "/", true, null, null, false);
+        // build after registering, so no saved change is missed; changes
+        // seen twice are re-read from the repository and do no harm
+        accessRolesProvider.getAclPathIndex().rebuild(session);
+        log.debug("Registered access roles change listener");
+    }
+
+    /**
+     * Unregister this listener and release its session.
+     *
+     * @throws RepositoryException
+     */
+    @PreDestroy
+    public void unregister() throws RepositoryException {
+        if (session != null) {
+            try {
+                session.getWorkspace().getObservationManager()
+                        .removeEventListener(this);
+            } finally {
+                session.logout();
+                session = null;
+            }
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see
+     * javax.jcr.observation.EventListener#onEvent(javax.jcr.observation.EventIterator
+     * )
+     */
+    @Override
+    public void onEvent(final EventIterator events) {
+        final AclPathIndex index = accessRolesProvider.getAclPathIndex();
+        boolean invalidate = false;
+        while (events.hasNext()) {
+            final Event event = events.nextEvent();
+            try {
+                if (mayAffectAccessRoles(event) && updateIndex(index, event)) {
+                    log.debug("access roles changed at {}", event.getPath());
+                    invalidate = true;
+                }
+            } catch (final RepositoryException e) {
+                log.warn("Cannot read event, rebuilding access roles index",
+                        e);
+                invalidate = true;
+                rebuildIndex(index);
+            }
+        }
+        if (invalidate) {
+            accessRolesProvider.invalidateCaches();
+        }
+    }
+
+    /**
+     * Update the index for an event.
+     *
+     * @return true if the event changed access roles
+     */
+    private boolean updateIndex(final AclPathIndex index, final Event event)
+        throws RepositoryException {
+        final String path = event.getPath();
+        final int authz = path.indexOf(AUTHZ_SEGMENT);
+        if (authz >= 0) {
+            // an ACL node or assignment changed; re-read its owner
+            index.refresh(session, authz == 0 ? "/" : path.substring(0,
+                    authz));
+            return true;
+        }
+        switch (event.getType()) {
+            case NODE_REMOVED:
+                return index.removeSubtree(session, path);
+            case NODE_MOVED:
+                boolean changed = false;
+                final Object source = event.getInfo().get("srcAbsPath");
+                if (source != null) {
+                    changed = index.removeSubtree(session, source.toString());
+                }
+                return index.refreshSubtree(session, path) || changed;
+            default:
+                return false;
+        }
+    }
+
+    private void rebuildIndex(final AclPathIndex index) {
+        try {
+            index.rebuild(session);
+        } catch (final RepositoryException e) {
+            log.error("Cannot rebuild access roles index", e);
+        }
+    }
+
+    private static boolean mayAffectAccessRoles(final Event event)
+        throws RepositoryException {
+        switch (event.getType()) {
+            case NODE_REMOVED:
+            case NODE_MOVED:
+                // the removed or moved subtree may have carried ACLs; the
+                // index tells whether it did
+                return true;
+            default:
+                return event.getPath().contains(AUTHZ_SEGMENT);
+        }
+    }
+}
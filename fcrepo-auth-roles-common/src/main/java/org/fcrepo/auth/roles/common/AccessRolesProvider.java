@@ -16,14 +16,19 @@
 
 package org.fcrepo.auth.roles.common;
 
+import static java.util.concurrent.TimeUnit.SECONDS;
+
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
-import javax.jcr.ItemExistsException;
 import javax.jcr.ItemNotFoundException;
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
@@ -38,6 +43,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.RatioGauge;
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
 /**
  * Provides the effective access roles for authorization.
  *
@@ -52,6 +65,202 @@ public class AccessRolesProvider {
     public static final Map<String, List<String>> DEFAULT_ACCESS_ROLES =
             Collections.emptyMap();
 
+    public static final long DEFAULT_CACHE_MAXIMUM_SIZE = 10000;
+
+    public static final long DEFAULT_CACHE_TIME_TO_LIVE_SECONDS = 300;
+
+    public static final long DEFAULT_MISSING_PATH_TIME_TO_LIVE_SECONDS = 5;
+
+    private long cacheMaximumSize = DEFAULT_CACHE_MAXIMUM_SIZE;
+
+    private long cacheTimeToLiveSeconds = DEFAULT_CACHE_TIME_TO_LIVE_SECONDS;
+
+    private boolean cachedNodeReads = false;
+
+    private long missingPathTimeToLiveSeconds =
+            DEFAULT_MISSING_PATH_TIME_TO_LIVE_SECONDS;
+
+    /**
+     * Maps a requested path to the path of its governing rbaclAssignable node,
+     * or to an absent value when no ancestor carries an ACL.
+     */
+    private Cache<Path, Optional<Path>> governingAclIndex = null;
+
+    /**
+     * Maps the path of an rbaclAssignable node to its resolved assignments.
+     */
+    private Cache<Path, CompiledAcl> aclRolesCache = null;
+
+    /**
+     * Paths recently found not to exist, e.g. the parents of a hierarchy
+     * being ingested, so that walks for their descendants skip the probe.
+     * A node created under a missed path inherits the same ACL, so a stale
+     * entry only matters once that node gets an ACL, which invalidates it.
+     */
+    private Cache<Path, Boolean> missingPaths = null;
+
+    /**
+     * Bumped on every invalidation, so that a lookup which raced with an ACL
+     * change does not put stale roles back into the caches.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * Answers governing ACL lookups without repository reads once built.
+     */
+    private final AclPathIndex aclPathIndex = new AclPathIndex();
+
+    private final PermissionMetrics metrics = new PermissionMetrics(
+            AccessRolesProvider.class);
+
+    private final Histogram ancestorWalkDepth = metrics
+            .histogram("ancestor-walk-depth");
+
+    private final Meter cachedNodeReadsMeter = metrics
+            .meter("cached-node-reads");
+
+    private final Meter cachedNodeReadFallbacks = metrics.meter(
+            "cached-node-reads", "fallbacks");
+
+    private final AtomicBoolean cachedNodeReadFallbackLogged =
+            new AtomicBoolean();
+
+    /**
+     * Default constructor.
+     */
+    public AccessRolesProvider() {
+        buildCaches();
+        metrics.registerGauge(new RatioGauge() {
+
+            @Override
+            protected Ratio getRatio() {
+                final CacheStats stats = governingAclIndex.stats();
+                return Ratio.of(stats.hitCount(), stats.requestCount());
+            }
+        }, "governing-acl-index", "hit-ratio");
+        metrics.registerGauge(new RatioGauge() {
+
+            @Override
+            protected Ratio getRatio() {
+                final CacheStats stats = aclRolesCache.stats();
+                return Ratio.of(stats.hitCount(), stats.requestCount());
+            }
+        }, "acl-roles-cache", "hit-ratio");
+    }
+
+    /**
+     * @return the maximum number of entries held by each roles cache
+     */
+    public long getCacheMaximumSize() {
+        return cacheMaximumSize;
+    }
+
+    /**
+     * @param cacheMaximumSize the maximum number of entries held by each roles
+     *        cache, zero disables caching
+     */
+    public void setCacheMaximumSize(final long cacheMaximumSize) {
+        this.cacheMaximumSize = cacheMaximumSize;
+        buildCaches();
+    }
+
+    /**
+     * @return the number of seconds a cached roles entry remains valid
+     */
+    public long getCacheTimeToLiveSeconds() {
+        return cacheTimeToLiveSeconds;
+    }
+
+    /**
+     * @param cacheTimeToLiveSeconds the number of seconds a cached roles entry
+     *        remains valid
+     */
+    public void setCacheTimeToLiveSeconds(final long cacheTimeToLiveSeconds) {
+        this.cacheTimeToLiveSeconds = cacheTimeToLiveSeconds;
+        buildCaches();
+    }
+
+    /**
+     * @return true if ACLs are resolved through ModeShape's node cache
+     */
+    public boolean isCachedNodeReads() {
+        return cachedNodeReads;
+    }
+
+    /**
+     * Resolve ACLs by reading ModeShape's node cache directly rather than
+     * through the JCR API. This depends on ModeShape internals and is off by
+     * default; lookups fall back to the JCR API whenever the cache cannot be
+     * read.
+     *
+     * @param cachedNodeReads true to read the node cache directly
+     */
+    public void setCachedNodeReads(final boolean cachedNodeReads) {
+        this.cachedNodeReads = cachedNodeReads;
+    }
+
+    /**
+     * @return the number of seconds a path found missing is remembered
+     */
+    public long getMissingPathTimeToLiveSeconds() {
+        return missingPathTimeToLiveSeconds;
+    }
+
+    /**
+     * @param missingPathTimeToLiveSeconds the number of seconds a path found
+     *        missing is remembered
+     */
+    public void setMissingPathTimeToLiveSeconds(
+            final long missingPathTimeToLiveSeconds) {
+        this.missingPathTimeToLiveSeconds = missingPathTimeToLiveSeconds;
+        buildCaches();
+    }
+
+    private void buildCaches() {
+        governingAclIndex =
+                CacheBuilder.newBuilder().maximumSize(cacheMaximumSize)
+                        .expireAfterWrite(cacheTimeToLiveSeconds, SECONDS)
+                        .recordStats().<Path, Optional<Path>> build();
+        aclRolesCache =
+                CacheBuilder.newBuilder().maximumSize(cacheMaximumSize)
+                        .expireAfterWrite(cacheTimeToLiveSeconds, SECONDS)
+                        .recordStats().<Path, CompiledAcl> build();
+        missingPaths =
+                CacheBuilder.newBuilder().maximumSize(cacheMaximumSize)
+                        .expireAfterWrite(missingPathTimeToLiveSeconds,
+                                SECONDS).<Path, Boolean> build();
+        generation.incrementAndGet();
+    }
+
+    /**
+     * @return the index of ACL-bearing paths
+     */
+    public AclPathIndex getAclPathIndex() {
+        return aclPathIndex;
+    }
+
+    /**
+     * Get the current cache generation, which changes whenever cached roles
+     * are invalidated.
+     *
+     * @return the cache generation
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Discards all cached effective roles. Called whenever access roles are
+     * edited or moved, or nodes that may carry them are removed.
+     */
+    public void invalidateCaches() {
+        generation.incrementAndGet();
+        governingAclIndex.invalidateAll();
+        aclRolesCache.invalidateAll();
+        missingPaths.invalidateAll();
+        log.debug("invalidated effective roles caches");
+    }
+
     /**
      * Get the roles assigned to this Node. Optionally search up the tree for
      * the effective roles.
@@ -65,9 +274,7 @@ public class AccessRolesProvider {
         throws RepositoryException {
         final Map<String, List<String>> data =
                 new HashMap<String, List<String>>();
-        final Session session = node.getSession();
-        Constants.registerPrefixes(session);
-        if (node.isNodeType(JcrName.rbaclAssignable.getQualified())) {
+        if (node.isNodeType(JcrName.rbaclAssignable.getExpanded())) {
             getAssignments(node, data);
             return data;
         } else {
@@ -76,7 +283,7 @@ public class AccessRolesProvider {
                     for (node = node.getParent(); node != null; node =
                             node.getParent()) {
                         if (node.isNodeType(JcrName.rbaclAssignable
-                                .getQualified())) {
+                                .getExpanded())) {
                             if (log.isDebugEnabled()) {
                                 log.debug(
                                         "effective roles are assigned at node: {}",
@@ -109,14 +316,14 @@ public class AccessRolesProvider {
             final Map<String, List<String>> data)
         throws RepositoryException {
 
-        if (node.isNodeType(JcrName.rbaclAssignable.getQualified())) {
+        if (node.isNodeType(JcrName.rbaclAssignable.getExpanded())) {
             try {
-                final Node rbacl = node.getNode(JcrName.rbacl.getQualified());
+                final Node rbacl = node.getNode(JcrName.rbacl.getExpanded());
                 log.debug("got rbacl: {}", rbacl);
                 for (final NodeIterator ni = rbacl.getNodes(); ni.hasNext();) {
                     final Node assign = ni.nextNode();
                     final String principalName =
-                            assign.getProperty(JcrName.principal.getQualified())
+                            assign.getProperty(JcrName.principal.getExpanded())
                                     .getString();
                     if (principalName == null ||
                             principalName.trim().length() == 0) {
@@ -129,7 +336,7 @@ public class AccessRolesProvider {
                             data.put(principalName, roles);
                         }
                         for (final Value v : assign.getProperty(
-                                JcrName.role.getQualified()).getValues()) {
+                                JcrName.role.getExpanded()).getValues()) {
                             if (v == null || v.toString().trim().length() == 0) {
                                 log.warn("found empty role name on node {}",
                                         node.getPath());
@@ -149,40 +356,149 @@ public class AccessRolesProvider {
     }
 
     /**
-     * Assigns the given set of roles to each principal.
+     * Saves role edits made with {@link #postRoles(Node, Map)},
+     * {@link #patchRoles(Node, Map)} or {@link #deleteRoles(Node)} and drops
+     * the cached roles. The caches are cleared only once the edits are saved,
+     * so that lookups made in between cannot cache the old roles as current.
+     *
+     * @param session the session the roles were edited in
+     * @throws RepositoryException if the session cannot be saved
+     */
+    public void saveRoles(final Session session) throws RepositoryException {
+        session.save();
+        invalidateCaches();
+    }
+
+    /**
+     * Assigns the given set of roles to each principal, replacing the
+     * existing assignments. Only assignment nodes that differ from the
+     * requested data are added, changed or removed. The edits take effect
+     * when saved with {@link #saveRoles(Session)}.
      *
      * @param node the Node to edit
      * @param data the roles to assign
      */
     public void postRoles(final Node node, final Map<String, Set<String>> data)
         throws RepositoryException {
-        final Session session = node.getSession();
-        Constants.registerPrefixes(session);
-        if (!node.isNodeType(JcrName.rbaclAssignable.getQualified())) {
-            node.addMixin(JcrName.rbaclAssignable.getQualified());
+        applyRoles(node, data, true);
+    }
+
+    /**
+     * Merges the given roles into the existing assignments. Principals not
+     * in the data keep their roles; a principal mapped to an empty set of
+     * roles loses its assignment. Removing every assignment leaves an empty
+     * ACL, which grants no roles, rather than reverting to inherited roles.
+     *
+     * @param node the Node to edit
+     * @param data the roles to assign per principal
+     */
+    public void patchRoles(final Node node, final Map<String, Set<String>> data)
+        throws RepositoryException {
+        applyRoles(node, data, false);
+    }
+
+    private void applyRoles(final Node node,
+            final Map<String, Set<String>> data, final boolean replace)
+        throws RepositoryException {
+        // the index is only told of the node if an assignment changes
+        boolean changed = false;
+        if (!node.isNodeType(JcrName.rbaclAssignable.getExpanded())) {
+            node.addMixin(JcrName.rbaclAssignable.getExpanded());
             log.debug("added rbaclAssignable type");
+            changed = true;
         }
 
-        Node acl = null;
-        try {
+        final Node acl;
+        if (node.hasNode(JcrName.rbacl.getExpanded())) {
+            acl = node.getNode(JcrName.rbacl.getExpanded());
+        } else {
             acl =
-                    node.addNode(JcrName.rbacl.getQualified(), JcrName.Rbacl
-                            .getQualified());
-        } catch (final ItemExistsException e) {
-            acl = node.getNode(JcrName.rbacl.getQualified());
-            for (final NodeIterator ni = acl.getNodes(); ni.hasNext();) {
-                ni.nextNode().remove();
+                    node.addNode(JcrName.rbacl.getExpanded(), JcrName.Rbacl
+                            .getExpanded());
+            changed = true;
+        }
+
+        // group the assignments by principal, in document order
+        final Map<String, List<Node>> existing =
+                new LinkedHashMap<String, List<Node>>();
+        for (final NodeIterator ni = acl.getNodes(); ni.hasNext();) {
+            final Node assign = ni.nextNode();
+            final String principal =
+                    assign.getProperty(JcrName.principal.getExpanded())
+                            .getString();
+            List<Node> assigns = existing.get(principal);
+            if (assigns == null) {
+                assigns = new ArrayList<Node>(1);
+                existing.put(principal, assigns);
             }
+            assigns.add(assign);
         }
 
-        for (final String key : data.keySet()) {
+        final Set<String> seen = new HashSet<String>();
+        for (final Map.Entry<String, List<Node>> entry : existing.entrySet()) {
+            final List<Node> assigns = entry.getValue();
+            final Set<String> requested = data.get(entry.getKey());
+            if ((requested == null && replace) ||
+                    (requested != null && requested.isEmpty())) {
+                // dropped or emptied assignment
+                for (final Node assign : assigns) {
+                    assign.remove();
+                }
+                changed = true;
+                continue;
+            }
+            seen.add(entry.getKey());
+            final Node first = assigns.get(0);
+            final Set<String> roles;
+            if (requested != null) {
+                roles = requested;
+            } else {
+                // a principal not mentioned keeps the roles of all its
+                // assignments, merged into the first one
+                roles = new HashSet<String>();
+                for (final Node assign : assigns) {
+                    roles.addAll(readRoleNames(assign));
+                }
+            }
+            if (!roles.equals(readRoleNames(first))) {
+                first.setProperty(JcrName.role.getExpanded(), roles
+                        .toArray(new String[roles.size()]));
+                changed = true;
+            }
+            for (final Node duplicate : assigns.subList(1, assigns.size())) {
+                duplicate.remove();
+                changed = true;
+            }
+        }
+
+        for (final Map.Entry<String, Set<String>> entry : data.entrySet()) {
+            if (seen.contains(entry.getKey()) || entry.getValue().isEmpty()) {
+                continue;
+            }
             final Node assign =
-                    acl.addNode(JcrName.assignment.getQualified(),
-                            JcrName.Assignment.getQualified());
-            assign.setProperty(JcrName.principal.getQualified(), key);
-            assign.setProperty(JcrName.role.getQualified(), data.get(key)
-                    .toArray(new String[] {}));
+                    acl.addNode(JcrName.assignment.getExpanded(),
+                            JcrName.Assignment.getExpanded());
+            assign.setProperty(JcrName.principal.getExpanded(), entry
+                    .getKey());
+            assign.setProperty(JcrName.role.getExpanded(), entry.getValue()
+                    .toArray(new String[entry.getValue().size()]));
+            changed = true;
+        }
+        if (changed) {
+            aclPathIndex.markDirty(node.getSession(), node.getPath());
+        }
+    }
+
+    private static Set<String> readRoleNames(final Node assign)
+        throws RepositoryException {
+        final Set<String> roles = new HashSet<String>();
+        if (assign.hasProperty(JcrName.role.getExpanded())) {
+            for (final Value v : assign.getProperty(JcrName.role.getExpanded())
+                    .getValues()) {
+                roles.add(v.getString());
+            }
         }
+        return roles;
     }
 
     /**
@@ -191,22 +507,24 @@ public class AccessRolesProvider {
      * @param node
      */
     public void deleteRoles(final Node node) throws RepositoryException {
-        final Session session = node.getSession();
-        Constants.registerPrefixes(session);
-        if (node.isNodeType(JcrName.rbaclAssignable.getQualified())) {
+        if (node.isNodeType(JcrName.rbaclAssignable.getExpanded())) {
+            // only a node with an ACL produces the event that clears the mark
+            aclPathIndex.markDirty(node.getSession(), node.getPath());
             // remove rbacl child
             try {
-                final Node rbacl = node.getNode(JcrName.rbacl.getQualified());
+                final Node rbacl = node.getNode(JcrName.rbacl.getExpanded());
                 rbacl.remove();
             } catch (final PathNotFoundException e) {
             }
             // remove mixin
-            node.removeMixin(JcrName.rbaclAssignable.getQualified());
+            node.removeMixin(JcrName.rbaclAssignable.getExpanded());
         }
     }
 
     /**
      * Finds effective roles assigned to a path, using first real ancestor node.
+     * Results are cached by the path of the governing rbaclAssignable node, so
+     * repeated lookups under the same ACL do not read the repository.
      *
      * @param absPath the real or potential node path
      * @return the roles assigned to each principal
@@ -214,20 +532,218 @@ public class AccessRolesProvider {
      */
     public Map<String, List<String>> findRolesForPath(final Path absPath,
             final Session session) throws RepositoryException {
+        final Path aclPath = findGoverningAclPath(absPath, session);
+        if (aclPath == null) {
+            return DEFAULT_ACCESS_ROLES;
+        }
+        return getRolesForAclPath(aclPath, session);
+    }
+
+    /**
+     * Finds the path of the rbaclAssignable node that governs a path, using
+     * first real ancestor node.
+     *
+     * @param absPath the real or potential node path
+     * @param session the session to read with
+     * @return the path of the governing node, or null if no ancestor carries
+     *         an ACL
+     * @throws RepositoryException
+     */
+    public Path findGoverningAclPath(final Path absPath, final Session session)
+        throws RepositoryException {
+        final long startGeneration = generation.get();
+        final Optional<Path> cachedAclPath =
+                governingAclIndex.getIfPresent(absPath);
+        if (cachedAclPath != null) {
+            return cachedAclPath.orNull();
+        }
+        final Optional<Path> indexedAclPath =
+                aclPathIndex.findGoverningAcl(absPath);
+        if (indexedAclPath != null) {
+            return indexedAclPath.orNull();
+        }
+        if (cachedNodeReads) {
+            if (CachedNodeAclReader.isAvailable(session)) {
+                try {
+                    final CachedNodeAclReader.Result result =
+                            CachedNodeAclReader.findGoverningAcl(absPath,
+                                    session);
+                    if (generation.get() == startGeneration) {
+                        if (result.aclPath != null) {
+                            aclRolesCache.put(result.aclPath, result.acl);
+                        }
+                        governingAclIndex.put(absPath, Optional
+                                .fromNullable(result.aclPath));
+                    }
+                    cachedNodeReadsMeter.mark();
+                    return result.aclPath;
+                } catch (final RuntimeException e) {
+                    cachedNodeReadFallback(e);
+                }
+            } else {
+                cachedNodeReadFallback(null);
+            }
+        }
+
         Node node = null;
         for (Path p = absPath; p != null; p = p.getParent()) {
-            try {
-                if (p.isRoot()) {
-                    node = session.getRootNode();
-                } else {
-                    node = session.getNode(p.getString());
-                }
+            if (p.isRoot()) {
+                node = session.getRootNode();
                 break;
-            } catch (final PathNotFoundException e) {
-                log.warn("Cannot find node: {}", p);
             }
+            if (missingPaths.getIfPresent(p) != null) {
+                continue;
+            }
+            final String jcrPath = p.getString();
+            if (session.nodeExists(jcrPath)) {
+                node = session.getNode(jcrPath);
+                break;
+            }
+            log.debug("No node at {}", p);
+            if (generation.get() == startGeneration) {
+                missingPaths.put(p, Boolean.TRUE);
+            }
+        }
+
+        final Node aclNode = findGoverningAclNode(node);
+        ancestorWalkDepth.update(absPath.size() -
+                (aclNode == null ? 0 : aclNode.getDepth()));
+        if (aclNode == null) {
+            if (generation.get() == startGeneration) {
+                governingAclIndex.put(absPath, Optional.<Path> absent());
+            }
+            return null;
+        }
+        final Path aclPath =
+                absPath.getAncestor(absPath.size() - aclNode.getDepth());
+        if (aclRolesCache.getIfPresent(aclPath) == null) {
+            final CompiledAcl roles = readRoles(aclNode);
+            if (generation.get() == startGeneration) {
+                aclRolesCache.put(aclPath, roles);
+            }
+        }
+        if (generation.get() == startGeneration) {
+            governingAclIndex.put(absPath, Optional.of(aclPath));
+        }
+        return aclPath;
+    }
+
+    /**
+     * Count a lookup that was meant to read the node cache but used the JCR
+     * API, warning the first time since it usually means the ModeShape
+     * version in use is not supported.
+     *
+     * @param e the failure, or null if the session's cache cannot be reached
+     */
+    private void cachedNodeReadFallback(final RuntimeException e) {
+        cachedNodeReadFallbacks.mark();
+        if (cachedNodeReadFallbackLogged.compareAndSet(false, true)) {
+            if (e == null) {
+                log.warn("Cannot read ModeShape's node cache, " +
+                        "using the JCR API to resolve ACLs");
+            } else {
+                log.warn("Node cache read failed, " +
+                        "using the JCR API to resolve ACLs", e);
+            }
+        } else {
+            log.debug("Node cache read failed, using the JCR API", e);
+        }
+    }
+
+    /**
+     * Gets the roles assigned on an rbaclAssignable node.
+     *
+     * @param aclPath the path of an rbaclAssignable node, as found by
+     *        {@link #findGoverningAclPath(Path, Session)}
+     * @param session the session to read with
+     * @return the roles assigned to each principal
+     * @throws RepositoryException
+     */
+    public Map<String, List<String>> getRolesForAclPath(final Path aclPath,
+            final Session session) throws RepositoryException {
+        return getCompiledAclForAclPath(aclPath, session).toMap();
+    }
+
+    /**
+     * Finds effective roles assigned to a path in compiled form.
+     *
+     * @param absPath the real or potential node path
+     * @param session the session to read with
+     * @return the compiled roles of the governing ACL, or an empty ACL
+     * @throws RepositoryException
+     */
+    public CompiledAcl findCompiledAclForPath(final Path absPath,
+            final Session session) throws RepositoryException {
+        final Path aclPath = findGoverningAclPath(absPath, session);
+        if (aclPath == null) {
+            return CompiledAcl.EMPTY;
+        }
+        return getCompiledAclForAclPath(aclPath, session);
+    }
+
+    /**
+     * Gets the roles assigned on an rbaclAssignable node in compiled form.
+     *
+     * @param aclPath the path of an rbaclAssignable node, as found by
+     *        {@link #findGoverningAclPath(Path, Session)}
+     * @param session the session to read with
+     * @return the compiled roles
+     * @throws RepositoryException
+     */
+    public CompiledAcl getCompiledAclForAclPath(final Path aclPath,
+            final Session session) throws RepositoryException {
+        final long startGeneration = generation.get();
+        final CompiledAcl cachedRoles = aclRolesCache.getIfPresent(aclPath);
+        if (cachedRoles != null) {
+            return cachedRoles;
+        }
+        final Node aclNode;
+        try {
+            aclNode =
+                    aclPath.isRoot() ? session.getRootNode() : session
+                            .getNode(aclPath.getString());
+        } catch (final PathNotFoundException e) {
+            log.debug("ACL node removed since lookup: {}", aclPath);
+            return CompiledAcl.EMPTY;
+        }
+        final CompiledAcl roles = readRoles(aclNode);
+        if (generation.get() == startGeneration) {
+            aclRolesCache.put(aclPath, roles);
+        }
+        return roles;
+    }
+
+    private CompiledAcl readRoles(final Node aclNode)
+        throws RepositoryException {
+        final Map<String, List<String>> data =
+                new HashMap<String, List<String>>();
+        getAssignments(aclNode, data);
+        return CompiledAcl.compile(data);
+    }
+
+    /**
+     * Finds the nearest rbaclAssignable node at or above the given node.
+     *
+     * @param node the starting node
+     * @return the governing node or null if no ancestor carries an ACL
+     * @throws RepositoryException
+     */
+    private Node findGoverningAclNode(final Node node)
+        throws RepositoryException {
+        try {
+            for (Node n = node; n != null; n = n.getParent()) {
+                if (n.isNodeType(JcrName.rbaclAssignable.getExpanded())) {
+                    if (log.isDebugEnabled()) {
+                        log.debug("effective roles are assigned at node: {}",
+                                n.getPath());
+                    }
+                    return n;
+                }
+            }
+        } catch (final ItemNotFoundException e) {
+            // reached the root without finding an ACL
         }
-        return this.getRoles(node, true);
+        return null;
     }
 
 }
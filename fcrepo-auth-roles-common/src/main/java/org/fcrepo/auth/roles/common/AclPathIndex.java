@@ -0,0 +1,429 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+
+import org.fcrepo.auth.roles.common.Constants.JcrName;
+import org.modeshape.jcr.ExecutionContext;
+import org.modeshape.jcr.value.Name;
+import org.modeshape.jcr.value.NameFactory;
+import org.modeshape.jcr.value.Path;
+import org.modeshape.jcr.value.PathFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Optional;
+
+/**
+ * In-memory prefix trie of the paths of rbaclAssignable nodes. It answers
+ * "which ACL governs this path" by following the path's segments, without
+ * reading the repository.
+ * <p>
+ * The repository remains the record of where ACLs are: the index is rebuilt
+ * from a query at startup and kept current by
+ * {@link AccessRolesChangeListener} as changes are saved. Paths whose roles
+ * were edited but not yet observed as saved are marked dirty, and lookups
+ * through them are answered as unknown so that callers fall back to reading
+ * the repository. A mark is cleared when the node is re-read or the index
+ * rebuilt, and expires on its own in case the edit is never saved.
+ */
+public class AclPathIndex {
+
+    private static final Logger log = LoggerFactory
+            .getLogger(AclPathIndex.class);
+
+    private static final ExecutionContext CONTEXT = new ExecutionContext();
+
+    private static final PathFactory PATHS = CONTEXT.getValueFactories()
+            .getPathFactory();
+
+    private static final NameFactory NAMES = CONTEXT.getValueFactories()
+            .getNameFactory();
+
+    private static final Name RBACL = NAMES.create(JcrName.NS_URI,
+            JcrName.rbacl.name());
+
+    private static final class Entry {
+
+        private final ConcurrentMap<Path.Segment, Entry> children =
+                new ConcurrentHashMap<Path.Segment, Entry>();
+
+        /**
+         * The path of this node when it carries an ACL, otherwise null.
+         */
+        private volatile Path aclPath = null;
+
+        /**
+         * When the dirty mark expires, in {@link System#nanoTime()} terms,
+         * or zero if the entry is clean.
+         */
+        private volatile long dirtyUntil = 0;
+
+        private boolean isDirty() {
+            final long until = dirtyUntil;
+            return until != 0 && until - System.nanoTime() > 0;
+        }
+    }
+
+    private volatile long dirtyTimeToLiveMillis = 10000;
+
+    private volatile Entry root = new Entry();
+
+    private volatile boolean built = false;
+
+    /**
+     * @return the number of milliseconds a dirty mark lasts without being
+     *         cleared
+     */
+    public long getDirtyTimeToLiveMillis() {
+        return dirtyTimeToLiveMillis;
+    }
+
+    /**
+     * @param dirtyTimeToLiveMillis the number of milliseconds a dirty mark
+     *        lasts without being cleared; it should exceed the delay before
+     *        saved changes are observed
+     */
+    public void setDirtyTimeToLiveMillis(final long dirtyTimeToLiveMillis) {
+        this.dirtyTimeToLiveMillis = dirtyTimeToLiveMillis;
+    }
+
+    /**
+     * @return true once the index has been built from the repository
+     */
+    public boolean isBuilt() {
+        return built;
+    }
+
+    /**
+     * Find the ACL that governs a path.
+     *
+     * @param absPath the real or potential node path
+     * @return the path of the governing rbaclAssignable node, absent if no
+     *         ancestor carries an ACL, or null if the index cannot tell
+     */
+    public Optional<Path> findGoverningAcl(final Path absPath) {
+        if (!built) {
+            return null;
+        }
+        Entry entry = root;
+        if (entry.isDirty()) {
+            return null;
+        }
+        Path found = entry.aclPath;
+        for (final Path.Segment segment : absPath) {
+            entry = entry.children.get(segment);
+            if (entry == null) {
+                break;
+            }
+            if (entry.isDirty()) {
+                return null;
+            }
+            if (entry.aclPath != null) {
+                found = entry.aclPath;
+            }
+        }
+        return Optional.fromNullable(found);
+    }
+
+    /**
+     * Mark a node whose roles were edited in a session that has not been
+     * saved yet. Lookups through it fall back to the repository until the
+     * saved change is observed or the mark expires.
+     *
+     * @param session the session the node was edited in
+     * @param jcrPath the node path
+     * @throws RepositoryException
+     */
+    public synchronized void markDirty(final Session session,
+            final String jcrPath) throws RepositoryException {
+        // never zero, which would read as clean
+        entryFor(toPath(session, jcrPath)).dirtyUntil =
+                (System.nanoTime() + MILLISECONDS
+                        .toNanos(dirtyTimeToLiveMillis)) | 1;
+    }
+
+    /**
+     * Rebuild the index from the repository.
+     *
+     * @param session a session that can read every ACL
+     * @throws RepositoryException
+     */
+    public synchronized void rebuild(final Session session)
+        throws RepositoryException {
+        final Entry next = new Entry();
+        if (session.getRootNode().isNodeType(
+                JcrName.rbaclAssignable.getExpanded())) {
+            next.aclPath = PATHS.createRootPath();
+        }
+        int count = 0;
+        for (final NodeIterator ni = queryAcls(session, null); ni.hasNext();) {
+            final Path path = toPath(session, ni.nextNode().getPath());
+            entryFor(next, path).aclPath = path;
+            count++;
+        }
+        root = next;
+        built = true;
+        log.info("Built ACL path index with {} entries", count);
+    }
+
+    /**
+     * Re-read whether a node carries an ACL.
+     *
+     * @param session a session that can read the node
+     * @param jcrPath the node path
+     * @throws RepositoryException
+     */
+    public synchronized void refresh(final Session session,
+            final String jcrPath) throws RepositoryException {
+        final Path path = toPath(session, jcrPath);
+        final Entry entry = entryFor(path);
+        entry.aclPath =
+                session.nodeExists(jcrPath) &&
+                        session.getNode(jcrPath).isNodeType(
+                                JcrName.rbaclAssignable.getExpanded())
+                        ? path : null;
+        entry.dirtyUntil = 0;
+        prune(path);
+    }
+
+    /**
+     * Re-read a node and every ACL beneath it, e.g. after it was moved in.
+     *
+     * @param session a session that can read the subtree
+     * @param jcrPath the subtree root path
+     * @return true if the subtree carried or now carries an ACL, or the index
+     *         is not built yet
+     * @throws RepositoryException
+     */
+    public synchronized boolean refreshSubtree(final Session session,
+            final String jcrPath) throws RepositoryException {
+        final Path subtree = toPath(session, jcrPath);
+        boolean acls = !built || containsAcl(entryFor(subtree));
+        refresh(session, jcrPath);
+        if (!session.nodeExists(jcrPath)) {
+            return acls;
+        }
+        for (final NodeIterator ni = queryAcls(session, jcrPath); ni
+                .hasNext();) {
+            final Path path = toPath(session, ni.nextNode().getPath());
+            entryFor(path).aclPath = path;
+            acls = true;
+        }
+        acls = acls || entryFor(subtree).aclPath != null;
+        prune(subtree);
+        return acls;
+    }
+
+    /**
+     * Forget a removed subtree.
+     *
+     * @param session a session to resolve namespace prefixes with
+     * @param jcrPath the removed subtree root path
+     * @return true if the subtree carried an ACL, or the index is not built
+     *         yet
+     * @throws RepositoryException
+     */
+    public synchronized boolean removeSubtree(final Session session,
+            final String jcrPath) throws RepositoryException {
+        final Path path = toPath(session, jcrPath);
+        if (path.isRoot()) {
+            return true;
+        }
+        Entry parent = root;
+        for (final Path.Segment segment : path.getParent()) {
+            parent = parent.children.get(segment);
+            if (parent == null) {
+                return !built;
+            }
+        }
+        final Entry removed = parent.children.remove(path.getLastSegment());
+        prune(path.getParent());
+        return !built || (removed != null && containsAcl(removed));
+    }
+
+    /**
+     * Remove the entries along a path that no longer carry an ACL, a dirty
+     * mark or children, from the deepest upward, so that refreshing and
+     * marking paths without ACLs does not grow the index.
+     */
+    private void prune(final Path path) {
+        final List<Entry> entries = new ArrayList<Entry>(path.size() + 1);
+        Entry entry = root;
+        entries.add(entry);
+        for (final Path.Segment segment : path) {
+            entry = entry.children.get(segment);
+            if (entry == null) {
+                break;
+            }
+            entries.add(entry);
+        }
+        for (int i = entries.size() - 1; i > 0; i--) {
+            final Entry pruned = entries.get(i);
+            if (pruned.aclPath != null || pruned.isDirty() ||
+                    !pruned.children.isEmpty()) {
+                return;
+            }
+            entries.get(i - 1).children.remove(path.getSegment(i - 1), pruned);
+        }
+    }
+
+    /**
+     * @return the number of entries beneath the root, for tests
+     */
+    synchronized int size() {
+        int size = 0;
+        final List<Entry> pending = new ArrayList<Entry>();
+        pending.add(root);
+        while (!pending.isEmpty()) {
+            final Entry next = pending.remove(pending.size() - 1);
+            size += next.children.size();
+            pending.addAll(next.children.values());
+        }
+        return size;
+    }
+
+    private static boolean containsAcl(final Entry entry) {
+        final List<Entry> pending = new ArrayList<Entry>();
+        pending.add(entry);
+        while (!pending.isEmpty()) {
+            final Entry next = pending.remove(pending.size() - 1);
+            if (next.aclPath != null || next.isDirty()) {
+                return true;
+            }
+            pending.addAll(next.children.values());
+        }
+        return false;
+    }
+
+    private Entry entryFor(final Path path) {
+        return entryFor(root, path);
+    }
+
+    private static Entry entryFor(final Entry start, final Path path) {
+        Entry entry = start;
+        for (final Path.Segment segment : path) {
+            Entry child = entry.children.get(segment);
+            if (child == null) {
+                final Entry created = new Entry();
+                child = entry.children.putIfAbsent(segment, created);
+                if (child == null) {
+                    child = created;
+                }
+            }
+            entry = child;
+        }
+        return entry;
+    }
+
+    private static NodeIterator queryAcls(final Session session,
+            final String underPath) throws RepositoryException {
+        final StringBuilder sql =
+                new StringBuilder("SELECT [jcr:path] FROM [").append(
+                        JcrName.rbaclAssignable.getExpanded()).append(
+                        "] AS acl");
+        if (underPath != null) {
+            sql.append(" WHERE ISDESCENDANTNODE(acl, '").append(
+                    underPath.replace("'", "''")).append("')");
+        }
+        return session.getWorkspace().getQueryManager().createQuery(
+                sql.toString(), Query.JCR_SQL2).execute().getNodes();
+    }
+
+    /**
+     * @param owner the path of an rbaclAssignable node
+     * @return the path of its ACL node
+     */
+    static Path toAclNodePath(final Path owner) {
+        return PATHS.create(owner, RBACL);
+    }
+
+    /**
+     * Convert a JCR path string to a ModeShape path with namespace URIs, as
+     * used in permission checks.
+     *
+     * @param session the session whose prefixes the path uses
+     * @param jcrPath the JCR path
+     * @return the path
+     * @throws RepositoryException
+     */
+    static Path toPath(final Session session, final String jcrPath)
+        throws RepositoryException {
+        final List<Path.Segment> segments = new ArrayList<Path.Segment>();
+        for (final String part : jcrPath.split("/")) {
+            if (part.isEmpty()) {
+                continue;
+            }
+            String name = part;
+            int index = Path.DEFAULT_INDEX;
+            final int bracket = part.indexOf('[');
+            if (bracket > 0 && part.endsWith("]")) {
+                name = part.substring(0, bracket);
+                index =
+                        Integer.parseInt(part.substring(bracket + 1, part
+                                .length() - 1));
+            }
+            final int colon = name.indexOf(':');
+            final Name segmentName =
+                    colon < 0 ? NAMES.create("", name) : NAMES.create(session
+                            .getNamespaceURI(name.substring(0, colon)), name
+                            .substring(colon + 1));
+            segments.add(PATHS.createSegment(segmentName, index));
+        }
+        return PATHS.createAbsolutePath(segments);
+    }
+
+    /**
+     * Convert a ModeShape path with namespace URIs back to a JCR path string
+     * that uses the prefixes of a session.
+     *
+     * @param session the session whose prefixes to use
+     * @param path the path
+     * @return the JCR path
+     * @throws RepositoryException
+     */
+    static String toJcrPath(final Session session, final Path path)
+        throws RepositoryException {
+        if (path.isRoot()) {
+            return "/";
+        }
+        final StringBuilder jcrPath = new StringBuilder();
+        for (final Path.Segment segment : path) {
+            final Name name = segment.getName();
+            jcrPath.append('/');
+            if (!name.getNamespaceUri().isEmpty()) {
+                jcrPath.append(session.getNamespacePrefix(name
+                        .getNamespaceUri())).append(':');
+            }
+            jcrPath.append(name.getLocalName());
+            if (segment.getIndex() > 1) {
+                jcrPath.append('[').append(segment.getIndex()).append(']');
+            }
+        }
+        return jcrPath.toString();
+    }
+}
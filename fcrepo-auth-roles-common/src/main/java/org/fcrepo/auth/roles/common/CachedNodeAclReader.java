@@ -0,0 +1,192 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.Session;
+
+import org.fcrepo.auth.roles.common.Constants.JcrName;
+import org.modeshape.jcr.JcrSession;
+import org.modeshape.jcr.cache.CachedNode;
+import org.modeshape.jcr.cache.ChildReference;
+import org.modeshape.jcr.cache.NodeCache;
+import org.modeshape.jcr.value.Name;
+import org.modeshape.jcr.value.Path;
+import org.modeshape.jcr.value.Property;
+import org.modeshape.jcr.value.basic.BasicName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resolves governing ACLs by reading ModeShape's node cache directly instead
+ * of through the JCR API, which avoids allocating JCR wrappers and entering
+ * the permission checks for every ancestor and assignment read.
+ * <p>
+ * The session cache is not public ModeShape API; it is reached by reflection
+ * and tied to the ModeShape version in use. When it cannot be reached the
+ * reader reports itself unavailable and callers use the JCR API.
+ */
+final class CachedNodeAclReader {
+
+    private static final Logger log = LoggerFactory
+            .getLogger(CachedNodeAclReader.class);
+
+    private static final Name RBACL_ASSIGNABLE = new BasicName(
+            JcrName.NS_URI, JcrName.rbaclAssignable.name());
+
+    private static final Name RBACL = new BasicName(JcrName.NS_URI,
+            JcrName.rbacl.name());
+
+    private static final Name PRINCIPAL = new BasicName(JcrName.NS_URI,
+            JcrName.principal.name());
+
+    private static final Name ROLE = new BasicName(JcrName.NS_URI, JcrName.role
+            .name());
+
+    private static final Method CACHE_METHOD = findCacheMethod();
+
+    /**
+     * The outcome of a lookup: the governing ACL path, or null, and its
+     * compiled roles.
+     */
+    static final class Result {
+
+        final Path aclPath;
+
+        final CompiledAcl acl;
+
+        Result(final Path aclPath, final CompiledAcl acl) {
+            this.aclPath = aclPath;
+            this.acl = acl;
+        }
+    }
+
+    private CachedNodeAclReader() {
+    }
+
+    private static Method findCacheMethod() {
+        try {
+            final Method method = JcrSession.class.getDeclaredMethod("cache");
+            method.setAccessible(true);
+            return method;
+        } catch (final NoSuchMethodException | SecurityException e) {
+            log.info("ModeShape node cache reads are unavailable: {}", e
+                    .toString());
+            return null;
+        }
+    }
+
+    /**
+     * @param session a session
+     * @return true if the session's node cache can be read directly
+     */
+    static boolean isAvailable(final Session session) {
+        return CACHE_METHOD != null && session instanceof JcrSession;
+    }
+
+    /**
+     * Find the ACL governing a path by walking down from the root through
+     * the node cache.
+     *
+     * @param absPath the real or potential node path
+     * @param session a session for which {@link #isAvailable(Session)} holds
+     * @return the governing ACL, with a null path if there is none
+     */
+    static Result findGoverningAcl(final Path absPath, final Session session) {
+        final NodeCache cache = cacheOf((JcrSession) session);
+        CachedNode node = cache.getNode(cache.getRootKey());
+        CachedNode aclNode = null;
+        int aclDepth = 0;
+        int depth = 0;
+        while (node != null) {
+            final Set<Name> mixins = node.getMixinTypes(cache);
+            if (mixins != null && mixins.contains(RBACL_ASSIGNABLE)) {
+                aclNode = node;
+                aclDepth = depth;
+            }
+            if (depth == absPath.size()) {
+                break;
+            }
+            final ChildReference child =
+                    node.getChildReferences(cache).getChild(
+                            absPath.getSegment(depth));
+            node = child == null ? null : cache.getNode(child.getKey());
+            depth++;
+        }
+        if (aclNode == null) {
+            return new Result(null, CompiledAcl.EMPTY);
+        }
+        return new Result(absPath.getAncestor(absPath.size() - aclDepth),
+                readAcl(aclNode, cache));
+    }
+
+    private static CompiledAcl readAcl(final CachedNode aclNode,
+            final NodeCache cache) {
+        final ChildReference rbaclRef =
+                aclNode.getChildReferences(cache).getChild(RBACL);
+        if (rbaclRef == null) {
+            return CompiledAcl.EMPTY;
+        }
+        final CachedNode rbacl = cache.getNode(rbaclRef.getKey());
+        final Map<String, List<String>> data =
+                new HashMap<String, List<String>>();
+        for (final Iterator<ChildReference> refs =
+                rbacl.getChildReferences(cache).iterator(); refs.hasNext();) {
+            final CachedNode assign = cache.getNode(refs.next().getKey());
+            final Property principal = assign.getProperty(PRINCIPAL, cache);
+            if (principal == null || principal.isEmpty()) {
+                continue;
+            }
+            final String principalName =
+                    principal.getFirstValue().toString();
+            if (principalName.trim().length() == 0) {
+                continue;
+            }
+            List<String> roles = data.get(principalName);
+            if (roles == null) {
+                roles = new ArrayList<String>();
+                data.put(principalName, roles);
+            }
+            final Property role = assign.getProperty(ROLE, cache);
+            if (role != null) {
+                for (final Object value : role) {
+                    // skipped like the JCR reads do
+                    if (value != null && value.toString().trim().length() > 0) {
+                        roles.add(value.toString());
+                    }
+                }
+            }
+        }
+        return CompiledAcl.compile(data);
+    }
+
+    private static NodeCache cacheOf(final JcrSession session) {
+        try {
+            return (NodeCache) CACHE_METHOD.invoke(session);
+        } catch (final IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException(
+                    "Cannot read the ModeShape session cache", e);
+        }
+    }
+}
@@ -0,0 +1,320 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compact, immutable form of the role assignments on one ACL node. The
+ * principal names that appear in ACLs are interned into integer ids shared by
+ * the whole PEP. Role names are numbered per ACL; the roles of each principal
+ * are kept as a bitmask of those numbers, so resolving the roles of a request
+ * is a bitwise OR over the masks of the request's principals.
+ * <p>
+ * An ACL using more than {@value #MAX_MASK_ROLES} distinct role names keeps
+ * the roles of each principal as a set of names instead. Once
+ * {@value #MAX_PRINCIPAL_IDS} principal names have been interned, principals
+ * new to the PEP are kept and matched by name.
+ */
+public final class CompiledAcl {
+
+    /**
+     * The most distinct role names an ACL may use and still keep its roles as
+     * bitmasks.
+     */
+    static final int MAX_MASK_ROLES = 64;
+
+    /**
+     * The most principal names interned for the life of the PEP.
+     */
+    static final int MAX_PRINCIPAL_IDS = 1 << 16;
+
+    private static final ConcurrentMap<String, Integer> PRINCIPAL_IDS =
+            new ConcurrentHashMap<String, Integer>();
+
+    private static final AtomicInteger NEXT_PRINCIPAL_ID = new AtomicInteger();
+
+    /**
+     * An ACL with no assignments.
+     */
+    public static final CompiledAcl EMPTY = new CompiledAcl(new int[0],
+            new String[0], new String[0], new long[0], new long[0], null);
+
+    /**
+     * Principal ids in ascending order.
+     */
+    private final int[] principalIds;
+
+    /**
+     * The names of the principals with ids, in the order of the ids, followed
+     * by the names of the principals without ids in ascending order.
+     */
+    private final String[] principalNames;
+
+    /**
+     * The role names used by this ACL, indexed by role number.
+     */
+    private final String[] roleNames;
+
+    /**
+     * Role bits of each principal, indexed as the principal names, or null if
+     * the roles are kept as sets.
+     */
+    private final long[] roleMasks;
+
+    /**
+     * Shared role bits of each principal, as given by
+     * {@link RoleSet#roleBit(String)}, or null if the roles are kept as sets.
+     */
+    private final long[] roleBits;
+
+    /**
+     * Roles of each principal when there are too many for bitmasks.
+     */
+    private final List<Set<String>> roleSets;
+
+    private volatile Map<String, List<String>> map = null;
+
+    private CompiledAcl(final int[] principalIds,
+            final String[] principalNames, final String[] roleNames,
+            final long[] roleMasks, final long[] roleBits,
+            final List<Set<String>> roleSets) {
+        this.principalIds = principalIds;
+        this.principalNames = principalNames;
+        this.roleNames = roleNames;
+        this.roleMasks = roleMasks;
+        this.roleBits = roleBits;
+        this.roleSets = roleSets;
+    }
+
+    /**
+     * Compile role assignments.
+     *
+     * @param acl the roles assigned to each principal name
+     * @return the compiled ACL
+     */
+    public static CompiledAcl compile(
+            final Map<String, ? extends Collection<String>> acl) {
+        if (acl.isEmpty()) {
+            return EMPTY;
+        }
+        final Map<String, Integer> roleNumbers =
+                new LinkedHashMap<String, Integer>();
+        final int[] allIds = new int[acl.size()];
+        final Map<Integer, String> names = new HashMap<Integer, String>();
+        final List<String> unnumbered = new ArrayList<String>(0);
+        int i = 0;
+        for (final Map.Entry<String, ? extends Collection<String>> entry : acl
+                .entrySet()) {
+            final int id = principalId(entry.getKey());
+            if (id < 0) {
+                unnumbered.add(entry.getKey());
+            } else {
+                allIds[i++] = id;
+                names.put(id, entry.getKey());
+            }
+            for (final String role : entry.getValue()) {
+                if (!roleNumbers.containsKey(role)) {
+                    roleNumbers.put(role, roleNumbers.size());
+                }
+            }
+        }
+        final int[] ids = Arrays.copyOf(allIds, i);
+        Arrays.sort(ids);
+        Collections.sort(unnumbered);
+        final String[] roleNames =
+                roleNumbers.keySet().toArray(new String[roleNumbers.size()]);
+        final boolean useMasks = roleNames.length <= MAX_MASK_ROLES;
+        final int count = acl.size();
+        final String[] sortedNames = new String[count];
+        final long[] masks = useMasks ? new long[count] : null;
+        final long[] bits = useMasks ? new long[count] : null;
+        final List<Set<String>> sets =
+                useMasks ? null : new ArrayList<Set<String>>(count);
+        for (int j = 0; j < count; j++) {
+            sortedNames[j] =
+                    j < ids.length ? names.get(ids[j])
+                            : unnumbered.get(j - ids.length);
+            final Collection<String> roles = acl.get(sortedNames[j]);
+            if (useMasks) {
+                long mask = 0;
+                long roleBits = 0;
+                for (final String role : roles) {
+                    mask |= 1L << roleNumbers.get(role);
+                    roleBits |= RoleSet.roleBit(role);
+                }
+                masks[j] = mask;
+                bits[j] = roleBits;
+            } else {
+                sets.add(Collections.unmodifiableSet(new HashSet<String>(
+                        roles)));
+            }
+        }
+        return new CompiledAcl(ids, sortedNames, roleNames, masks, bits, sets);
+    }
+
+    /**
+     * Intern the name of a principal that appears in an ACL.
+     *
+     * @param name a principal name
+     * @return the interned id of the principal, or -1 if
+     *         {@value #MAX_PRINCIPAL_IDS} names have already been interned
+     */
+    static int principalId(final String name) {
+        final Integer id = PRINCIPAL_IDS.get(name);
+        if (id != null) {
+            return id;
+        }
+        synchronized (PRINCIPAL_IDS) {
+            final Integer existing = PRINCIPAL_IDS.get(name);
+            if (existing != null) {
+                return existing;
+            }
+            final int created = NEXT_PRINCIPAL_ID.get();
+            if (created >= MAX_PRINCIPAL_IDS) {
+                return -1;
+            }
+            // publish the name before the count, so that a context resolved
+            // against the new count sees the name
+            PRINCIPAL_IDS.put(name, created);
+            NEXT_PRINCIPAL_ID.incrementAndGet();
+            return created;
+        }
+    }
+
+    /**
+     * Look up a principal without interning it. Names that appear in no ACL
+     * have no id.
+     *
+     * @param name a principal name
+     * @return the interned id of the principal or -1
+     */
+    static int existingPrincipalId(final String name) {
+        final Integer id = PRINCIPAL_IDS.get(name);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * @return the number of principal names interned so far, which grows
+     *         whenever an ACL names a new principal
+     */
+    static int internedPrincipalCount() {
+        return NEXT_PRINCIPAL_ID.get();
+    }
+
+    /**
+     * Resolve the roles of a request.
+     *
+     * @param principals the request's principals
+     * @return the roles assigned to any of the principals
+     */
+    public Set<String> resolve(final PrincipalContext principals) {
+        final int[] ids = principals.getIds();
+        long mask = 0;
+        long bits = 0;
+        Set<String> roles = null;
+        int i = 0;
+        int j = 0;
+        while (i < ids.length && j < principalIds.length) {
+            if (ids[i] < principalIds[j]) {
+                i++;
+            } else if (ids[i] > principalIds[j]) {
+                j++;
+            } else {
+                if (roleMasks != null) {
+                    mask |= roleMasks[j];
+                    bits |= roleBits[j];
+                } else {
+                    if (roles == null) {
+                        roles = new HashSet<String>();
+                    }
+                    roles.addAll(roleSets.get(j));
+                }
+                i++;
+                j++;
+            }
+        }
+        // principals without ids are matched by name
+        final String[] names = principals.getUnknownNames();
+        i = 0;
+        j = principalIds.length;
+        while (i < names.length && j < principalNames.length) {
+            final int c = names[i].compareTo(principalNames[j]);
+            if (c < 0) {
+                i++;
+            } else if (c > 0) {
+                j++;
+            } else {
+                if (roleMasks != null) {
+                    mask |= roleMasks[j];
+                    bits |= roleBits[j];
+                } else {
+                    if (roles == null) {
+                        roles = new HashSet<String>();
+                    }
+                    roles.addAll(roleSets.get(j));
+                }
+                i++;
+                j++;
+            }
+        }
+        if (roleMasks == null) {
+            return roles == null ? RoleSet.EMPTY : Collections
+                    .unmodifiableSet(roles);
+        }
+        return mask == 0 ? RoleSet.EMPTY : new RoleSet(mask, roleNames, bits);
+    }
+
+    /**
+     * @return true if no roles are assigned
+     */
+    public boolean isEmpty() {
+        return principalNames.length == 0;
+    }
+
+    /**
+     * @return the roles assigned to each principal name
+     */
+    public Map<String, List<String>> toMap() {
+        Map<String, List<String>> result = map;
+        if (result == null) {
+            final Map<String, List<String>> data =
+                    new HashMap<String, List<String>>(principalNames.length);
+            for (int i = 0; i < principalNames.length; i++) {
+                final Set<String> roles =
+                        roleMasks == null ? roleSets.get(i) : new RoleSet(
+                                roleMasks[i], roleNames, roleBits[i]);
+                data.put(principalNames[i], Collections
+                        .unmodifiableList(new ArrayList<String>(roles)));
+            }
+            result = Collections.unmodifiableMap(data);
+            map = result;
+        }
+        return result;
+    }
+}
@@ -79,7 +79,10 @@ public class Constants {
     }
 
     /**
-     * Adds access roles prefix "authz" to the given session.
+     * Adds access roles prefix "authz" to the given session. The prefix is
+     * registered for the whole repository along with the access control node
+     * types, and the access roles code uses expanded names, so this is only
+     * needed where a session has remapped the prefix.
      * @param session
      * @throws RepositoryException
      */
@@ -0,0 +1,48 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+/**
+ * A cache of permission decisions consulted by {@link AbstractRolesPEP}
+ * before it asks a concrete PEP to decide on a set of roles. Implementations
+ * must be safe for use by concurrent permission checks.
+ * <p>
+ * A PEP uses the cache bean found in its Spring context, if there is one;
+ * {@link InMemoryDecisionCache} is the default implementation.
+ */
+public interface DecisionCache {
+
+    /**
+     * Look up a decision.
+     *
+     * @param key the normalized request
+     * @return the cached decision or null
+     */
+    Boolean get(DecisionKey key);
+
+    /**
+     * Remember a decision.
+     *
+     * @param key the normalized request
+     * @param permitted the decision
+     */
+    void put(DecisionKey key, boolean permitted);
+
+    /**
+     * Discard every cached decision.
+     */
+    void invalidateAll();
+}
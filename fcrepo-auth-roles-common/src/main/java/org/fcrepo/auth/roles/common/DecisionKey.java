@@ -0,0 +1,109 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.base.Objects;
+
+/**
+ * The normalized attributes of a permission decision on a set of roles: the
+ * PEP that made it and the version of its rules, the resource, the actions,
+ * the user and the effective roles.
+ */
+public final class DecisionKey {
+
+    private final String namespace;
+
+    private final long version;
+
+    private final Object resource;
+
+    private final List<String> actions;
+
+    private final String userName;
+
+    private final Set<String> roles;
+
+    private final int hash;
+
+    /**
+     * @param namespace identifies the PEP making the decision, so that PEPs
+     *        sharing a cache do not see each other's decisions
+     * @param version the version of the rules making the decision
+     * @param resource the resource, or whatever part of it decisions depend
+     *        on
+     * @param actions the requested actions
+     * @param userName the name of the user principal
+     * @param roles the effective roles
+     */
+    public DecisionKey(final String namespace, final long version,
+            final Object resource, final String[] actions,
+            final String userName, final Set<String> roles) {
+        this.namespace = namespace;
+        this.version = version;
+        this.resource = resource;
+        this.actions = Arrays.asList(actions.clone());
+        this.userName = userName;
+        this.roles = roles;
+        this.hash =
+                Objects.hashCode(namespace, version, resource, this.actions,
+                        userName, roles);
+    }
+
+    /**
+     * @return identifies the PEP making the decision
+     */
+    public String getNamespace() {
+        return namespace;
+    }
+
+    /**
+     * @return the version of the rules making the decision
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (!(obj instanceof DecisionKey)) {
+            return false;
+        }
+        final DecisionKey that = (DecisionKey) obj;
+        return version == that.version &&
+                Objects.equal(namespace, that.namespace) &&
+                Objects.equal(resource, that.resource) &&
+                actions.equals(that.actions) &&
+                Objects.equal(userName, that.userName) &&
+                roles.equals(that.roles);
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this).add("namespace", namespace).add(
+                "version", version).add(
+                "resource", resource).add("actions", actions).add("userName",
+                userName).add("roles", roles).toString();
+    }
+}
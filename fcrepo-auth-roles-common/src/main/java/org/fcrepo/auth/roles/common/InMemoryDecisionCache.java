@@ -0,0 +1,104 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * A decision cache held in the heap, bounded in size and evicting decisions
+ * a fixed time after they were made. Changing either bound discards the
+ * cached decisions.
+ */
+public class InMemoryDecisionCache implements DecisionCache {
+
+    private long maximumSize = 10000;
+
+    private long timeToLiveSeconds = 300;
+
+    private volatile Cache<DecisionKey, Boolean> decisions = null;
+
+    /**
+     * Default constructor.
+     */
+    public InMemoryDecisionCache() {
+        buildCache();
+    }
+
+    /**
+     * @return the maximum number of cached decisions
+     */
+    public long getMaximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * @param maximumSize the maximum number of cached decisions, zero
+     *        disables the cache
+     */
+    public void setMaximumSize(final long maximumSize) {
+        this.maximumSize = maximumSize;
+        buildCache();
+    }
+
+    /**
+     * @return the number of seconds a cached decision remains valid
+     */
+    public long getTimeToLiveSeconds() {
+        return timeToLiveSeconds;
+    }
+
+    /**
+     * @param timeToLiveSeconds the number of seconds a cached decision
+     *        remains valid
+     */
+    public void setTimeToLiveSeconds(final long timeToLiveSeconds) {
+        this.timeToLiveSeconds = timeToLiveSeconds;
+        buildCache();
+    }
+
+    private void buildCache() {
+        decisions =
+                CacheBuilder.newBuilder().maximumSize(maximumSize)
+                        .expireAfterWrite(timeToLiveSeconds, SECONDS)
+                        .recordStats().<DecisionKey, Boolean> build();
+    }
+
+    @Override
+    public Boolean get(final DecisionKey key) {
+        return decisions.getIfPresent(key);
+    }
+
+    @Override
+    public void put(final DecisionKey key, final boolean permitted) {
+        decisions.put(key, permitted);
+    }
+
+    @Override
+    public void invalidateAll() {
+        decisions.invalidateAll();
+    }
+
+    /**
+     * @return the hit and miss counts of the cache
+     */
+    public CacheStats stats() {
+        return decisions.stats();
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.auth.roles.common;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.fcrepo.http.commons.session.SessionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+
+/**
+ * Hands out one read-only internal session per thread, so that permission
+ * checks reuse a session instead of logging in on every callback.
+ * <p>
+ * ModeShape sessions see changes saved by other sessions as soon as they are
+ * committed, so a reused session only needs a refresh when it has somehow
+ * acquired transient changes of its own. Sessions that are no longer live are
+ * replaced. Sessions are held weakly by their thread: once a thread has
+ * ended and been collected, as pool threads are when idle, its session is
+ * logged out. All remaining sessions are logged out by {@link #close()}.
+ */
+public class InternalSessionProvider {
+
+    private static final Logger log = LoggerFactory
+            .getLogger(InternalSessionProvider.class);
+
+    private final SessionFactory sessionFactory;
+
+    private final Cache<Thread, Session> sessions = CacheBuilder.newBuilder()
+            .weakKeys().removalListener(new RemovalListener<Thread, Session>() {
+
+                @Override
+                public void onRemoval(
+                        final RemovalNotification<Thread, Session> removal) {
+                    final Session session = removal.getValue();
+                    if (session != null && session.isLive()) {
+                        session.logout();
+                        log.debug("Closed internal PEP session ({})", removal
+                                .getCause());
+                    }
+                }
+            }).<Thread, Session> build();
+
+    /**
+     * @param sessionFactory the source of internal sessions
+     */
+    public InternalSessionProvider(final SessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+    }
+
+    /**
+     * Get the internal session bound to the current thread, logging in a new
+     * one if there is none yet or the previous one is no longer live.
+     *
+     * @return a read-only internal session
+     * @throws RepositoryException if a session cannot be obtained
+     */
+    public Session getSession() throws RepositoryException {
+        final Thread thread = Thread.currentThread();
+        Session session = sessions.getIfPresent(thread);
+        if (session != null && session.isLive()) {
+            if (session.hasPendingChanges()) {
+                log.warn("Discarding transient changes on internal PEP session");
+                session.refresh(false);
+            }
+            return session;
+        }
+        session = sessionFactory.getInternalSession();
+        sessions.put(thread, session);
+        log.debug("Opened internal PEP session, {} now open", sessions.size());
+        return session;
+    }
+
+    /**
+     * @return the number of sessions held for threads
+     */
+    long size() {
+        sessions.cleanUp();
+        return sessions.size();
+    }
+
+    /**
+     * Log out every session handed out by this provider.
+     */
+    public void close() {
+        sessions.invalidateAll();
+        sessions.cleanUp();
+        log.debug("Closed internal PEP sessions");
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+/**
+ * Marks the threads that are inside a permission check. The policy
+ * enforcement point reads ACL nodes with its internal session, which is not
+ * subject to authorization, so a check started while another is in progress
+ * comes from other code on the thread. Such nested checks are still decided;
+ * the depth recorded here only lets the enforcement point count them and
+ * stop runaway recursion.
+ * <p>
+ * Every {@link #enter()} must be paired with an {@link #exit()} in a finally
+ * block.
+ */
+final class PermissionCheckGuard {
+
+    private static final ThreadLocal<int[]> DEPTH = new ThreadLocal<int[]>() {
+
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+
+    private PermissionCheckGuard() {
+    }
+
+    /**
+     * Note that the current thread has started a permission check.
+     *
+     * @return true if the thread was already inside a check
+     */
+    static boolean enter() {
+        return DEPTH.get()[0]++ > 0;
+    }
+
+    /**
+     * Note that the current thread has finished a permission check.
+     */
+    static void exit() {
+        final int[] depth = DEPTH.get();
+        if (--depth[0] <= 0) {
+            DEPTH.remove();
+        }
+    }
+
+    /**
+     * @return the number of permission checks in progress on the current
+     *         thread
+     */
+    static int depth() {
+        return DEPTH.get()[0];
+    }
+
+    /**
+     * @return true if the current thread is inside a permission check
+     */
+    static boolean isActive() {
+        return DEPTH.get()[0] > 0;
+    }
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.auth.roles.common;
+
+import java.security.Principal;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.modeshape.jcr.value.Path;
+
+/**
+ * Request-scoped memo of permission decisions. ModeShape asks for the same
+ * path and actions many times while serving one request; a memo bound to the
+ * request thread answers the repeats without resolving roles again. Each PEP
+ * has a memo of its own, so PEPs never answer from each other's decisions.
+ * <p>
+ * A memo exists only between {@link #begin()} and {@link #end()}, which are
+ * normally called by {@link PermissionDecisionMemoListener} around each
+ * servlet request. Outside of that scope nothing is memoized. Decisions are
+ * dropped whenever the access roles change.
+ */
+public final class PermissionDecisionMemo {
+
+    /**
+     * Upper bound on memoized decisions, protecting requests that touch very
+     * many distinct paths.
+     */
+    static final int MAX_DECISIONS = 10000;
+
+    private static final ThreadLocal<Map<Object, PermissionDecisionMemo>>
+            CURRENT = new ThreadLocal<Map<Object, PermissionDecisionMemo>>();
+
+    private final Map<Key, Boolean> decisions = new HashMap<Key, Boolean>();
+
+    private long generation = -1;
+
+    private PermissionDecisionMemo() {
+    }
+
+    /**
+     * Start memoizing decisions on the current thread.
+     */
+    public static void begin() {
+        CURRENT.set(new IdentityHashMap<Object, PermissionDecisionMemo>());
+    }
+
+    /**
+     * Stop memoizing decisions on the current thread and discard them.
+     */
+    public static void end() {
+        CURRENT.remove();
+    }
+
+    /**
+     * @param owner the PEP making the decisions
+     * @return the owner's memo on the current thread, or null if nothing is
+     *         being memoized
+     */
+    public static PermissionDecisionMemo current(final Object owner) {
+        final Map<Object, PermissionDecisionMemo> memos = CURRENT.get();
+        if (memos == null) {
+            return null;
+        }
+        PermissionDecisionMemo memo = memos.get(owner);
+        if (memo == null) {
+            memo = new PermissionDecisionMemo();
+            memos.put(owner, memo);
+        }
+        return memo;
+    }
+
+    /**
+     * Look up an earlier decision.
+     *
+     * @param absPath the path checked
+     * @param actions the actions checked
+     * @param allPrincipals the principals of the request
+     * @param userPrincipal the user principal of the request
+     * @param rolesGeneration the current access roles generation
+     * @return the earlier decision or null
+     */
+    public Boolean get(final Path absPath, final String[] actions,
+            final Set<Principal> allPrincipals, final Principal userPrincipal,
+            final long rolesGeneration) {
+        if (rolesGeneration != generation) {
+            decisions.clear();
+            generation = rolesGeneration;
+            return null;
+        }
+        return decisions.get(new Key(absPath, actions, allPrincipals,
+                userPrincipal));
+    }
+
+    /**
+     * Remember a decision.
+     *
+     * @param absPath the path checked
+     * @param actions the actions checked
+     * @param allPrincipals the principals of the request
+     * @param userPrincipal the user principal of the request
+     * @param rolesGeneration the access roles generation the decision was
+     *        made under
+     * @param decision the decision
+     */
+    public void put(final Path absPath, final String[] actions,
+            final Set<Principal> allPrincipals, final Principal userPrincipal,
+            final long rolesGeneration, final boolean decision) {
+        if (rolesGeneration != generation) {
+            decisions.clear();
+            generation = rolesGeneration;
+        }
+        if (decisions.size() >= MAX_DECISIONS) {
+            decisions.clear();
+        }
+        decisions.put(new Key(absPath, actions.clone(), allPrincipals,
+                userPrincipal), decision);
+    }
+
+    private static final class Key {
+
+        private final Path path;
+
+        private final String[] actions;
+
+        private final PrincipalContext principals;
+
+        private final String userName;
+
+        private final int hash;
+
+        Key(final Path path, final String[] actions,
+                final Set<Principal> principals, final Principal userPrincipal) {
+            this.path = path;
+            this.actions = actions;
+            this.principals =
+                    principals == null ? null : PrincipalContext.of(principals);
+            this.userName =
+                    userPrincipal == null ? null : userPrincipal.getName();
+            int h = path == null ? 0 : path.hashCode();
+            h = 31 * h + Arrays.hashCode(actions);
+            h = 31 * h +
+                    (this.principals == null ? 0 : this.principals.hashCode());
+            h = 31 * h + (userName == null ? 0 : userName.hashCode());
+            this.hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key that = (Key) obj;
+            return hash == that.hash && equal(path, that.path) &&
+                    Arrays.equals(actions, that.actions) &&
+                    equal(userName, that.userName) &&
+                    equal(principals, that.principals);
+        }
+
+        private static boolean equal(final Object a, final Object b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+}
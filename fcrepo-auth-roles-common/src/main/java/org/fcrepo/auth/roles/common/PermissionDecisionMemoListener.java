@@ -0,0 +1,50 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.auth.roles.common;
+
+import javax.servlet.ServletRequestEvent;
+import javax.servlet.ServletRequestListener;
+
+/**
+ * Scopes a {@link PermissionDecisionMemo} to each servlet request. Register
+ * it as a listener in web.xml to enable per-request decision memoization.
+ */
+public class PermissionDecisionMemoListener implements ServletRequestListener {
+
+    /*
+     * (non-Javadoc)
+     * @see
+     * javax.servlet.ServletRequestListener#requestInitialized(javax.servlet
+     * .ServletRequestEvent)
+     */
+    @Override
+    public void requestInitialized(final ServletRequestEvent event) {
+        PermissionDecisionMemo.begin();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see
+     * javax.servlet.ServletRequestListener#requestDestroyed(javax.servlet
+     * .ServletRequestEvent)
+     */
+    @Override
+    public void requestDestroyed(final ServletRequestEvent event) {
+        PermissionDecisionMemo.end();
+    }
+
+}
@@ -0,0 +1,254 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
+
+/**
+ * Metrics for permission checks, registered in the shared Fedora metrics
+ * registry under the name of the owning class.
+ */
+public class PermissionMetrics {
+
+    private static final Logger log = LoggerFactory
+            .getLogger(PermissionMetrics.class);
+
+    /**
+     * The shared registry also used by the Fedora @Timed endpoints.
+     */
+    public static final String REGISTRY_NAME = "fcrepo-metrics";
+
+    /**
+     * The JCR actions a decision meter pair is created for up front.
+     */
+    private static final String[] JCR_ACTIONS = {"read", "add_node",
+        "set_property", "remove", "register_namespace", "register_type"};
+
+    private static final int DENY = 0;
+
+    private static final int PERMIT = 1;
+
+    private final MetricRegistry registry;
+
+    private final String prefix;
+
+    private final Timer decisionTimer;
+
+    private final Timer filterTimer;
+
+    private final Timer removeCheckTimer;
+
+    private final Histogram removeCheckNodesVisited;
+
+    private final Meter reentrantChecks;
+
+    private final ConcurrentMap<String, Meter[]> decisionMeters =
+            new ConcurrentHashMap<String, Meter[]>();
+
+    /**
+     * @param owner the class whose checks are measured
+     */
+    public PermissionMetrics(final Class<?> owner) {
+        this(SharedMetricRegistries.getOrCreate(REGISTRY_NAME), owner);
+    }
+
+    /**
+     * @param registry the registry to use
+     * @param owner the class whose checks are measured
+     */
+    public PermissionMetrics(final MetricRegistry registry,
+            final Class<?> owner) {
+        this.registry = registry;
+        this.prefix = owner.getName();
+        this.decisionTimer = registry.timer(name(prefix, "decisions"));
+        this.filterTimer = registry.timer(name(prefix, "filter-paths"));
+        this.removeCheckTimer = registry.timer(name(prefix, "remove-check"));
+        this.removeCheckNodesVisited =
+                registry.histogram(name(prefix, "remove-check",
+                        "nodes-visited"));
+        this.reentrantChecks =
+                registry.meter(name(prefix, "decisions", "reentrant"));
+        for (final String action : JCR_ACTIONS) {
+            decisionMeters.put(action, decisionMeters(action));
+        }
+    }
+
+    /**
+     * @return the registry the metrics are kept in
+     */
+    public MetricRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Record the time taken by a permission decision.
+     *
+     * @param startNanos the {@link System#nanoTime()} the decision began at
+     */
+    public void updateDecisionTime(final long startNanos) {
+        decisionTimer.update(System.nanoTime() - startNanos, NANOSECONDS);
+    }
+
+    /**
+     * Record the time taken to filter a window of paths.
+     *
+     * @param startNanos the {@link System#nanoTime()} the filter began at
+     */
+    public void updateFilterTime(final long startNanos) {
+        filterTimer.update(System.nanoTime() - startNanos, NANOSECONDS);
+    }
+
+    /**
+     * Record the time taken by a recursive remove check.
+     *
+     * @param startNanos the {@link System#nanoTime()} the check began at
+     */
+    public void updateRemoveCheckTime(final long startNanos) {
+        removeCheckTimer.update(System.nanoTime() - startNanos, NANOSECONDS);
+    }
+
+    /**
+     * Count a decision by action and outcome. Meters for the JCR actions are
+     * created up front; a single action is looked up without building a key.
+     *
+     * @param actions the actions checked
+     * @param permitted the outcome
+     */
+    public void markDecision(final String[] actions, final boolean permitted) {
+        final String action =
+                actions.length == 1 ? actions[0] : joinActions(actions);
+        Meter[] meters = decisionMeters.get(action);
+        if (meters == null) {
+            meters = decisionMeters(action);
+            final Meter[] existing =
+                    decisionMeters.putIfAbsent(action, meters);
+            if (existing != null) {
+                meters = existing;
+            }
+        }
+        meters[permitted ? PERMIT : DENY].mark();
+    }
+
+    private Meter[] decisionMeters(final String action) {
+        return new Meter[] {
+            registry.meter(name(prefix, "decisions", action, "deny")),
+            registry.meter(name(prefix, "decisions", action, "permit"))};
+    }
+
+    /**
+     * Count a permission check made while another check was in progress on
+     * the same thread.
+     */
+    public void markReentrant() {
+        reentrantChecks.mark();
+    }
+
+    /**
+     * Record the number of nodes a remove check visited.
+     *
+     * @param nodes the nodes visited
+     */
+    public void updateRemoveCheckNodesVisited(final int nodes) {
+        removeCheckNodesVisited.update(nodes);
+    }
+
+    /**
+     * Get a histogram named under the owning class.
+     *
+     * @param names the name segments
+     * @return the histogram
+     */
+    public Histogram histogram(final String... names) {
+        return registry.histogram(name(prefix, names));
+    }
+
+    /**
+     * Get a meter named under the owning class.
+     *
+     * @param names the name segments
+     * @return the meter
+     */
+    public Meter meter(final String... names) {
+        return registry.meter(name(prefix, names));
+    }
+
+    /**
+     * Register a gauge under the owning class. A name is registered once, with
+     * a gauge that reports the value of the gauge most recently given for it,
+     * so a later instance of the owning class takes over the name without the
+     * registration ever being absent.
+     *
+     * @param gauge the gauge
+     * @param names the name segments
+     */
+    public void registerGauge(final Gauge<?> gauge, final String... names) {
+        final String gaugeName = name(prefix, names);
+        final ReplaceableGauge replaceable = new ReplaceableGauge(gauge);
+        try {
+            registry.register(gaugeName, replaceable);
+        } catch (final IllegalArgumentException e) {
+            final Gauge<?> registered = registry.getGauges().get(gaugeName);
+            if (registered instanceof ReplaceableGauge) {
+                ((ReplaceableGauge) registered).delegate = gauge;
+            } else {
+                log.warn("Not replacing metric {} registered elsewhere",
+                        gaugeName);
+            }
+        }
+    }
+
+    /**
+     * A gauge reporting the value of another that can be replaced.
+     */
+    private static final class ReplaceableGauge implements Gauge<Object> {
+
+        private volatile Gauge<?> delegate;
+
+        private ReplaceableGauge(final Gauge<?> delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Object getValue() {
+            return delegate.getValue();
+        }
+    }
+
+    private static String joinActions(final String[] actions) {
+        final StringBuilder sb = new StringBuilder();
+        for (final String action : actions) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(action);
+        }
+        return sb.toString();
+    }
+}
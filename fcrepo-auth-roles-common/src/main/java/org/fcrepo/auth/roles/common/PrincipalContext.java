@@ -0,0 +1,162 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * The principals of a session resolved once into interned ids with a stable
+ * hash. The authentication provider builds one principal set when it
+ * authenticates a session, and the session's security context passes that
+ * same set to every permission check of the session, so contexts are cached
+ * by the identity of the set and live as long as it does. The user principal
+ * is not a safe key: a container may hand the same user principal to
+ * sessions whose group principals differ.
+ * <p>
+ * A cached context is only reused while the set still has the size and hash
+ * code it was resolved from, so a set that is changed, or a caller that
+ * builds a new set for every check, costs a resolution rather than wrong
+ * roles.
+ * <p>
+ * Principal names are only looked up, never interned, so request principals
+ * do not grow the shared id table. Names that appear in no ACL are kept by
+ * name; a context holding such names is resolved again once an ACL has named
+ * a new principal.
+ */
+public final class PrincipalContext {
+
+    private static final Cache<Set<Principal>, PrincipalContext> CONTEXTS =
+            CacheBuilder.newBuilder().weakKeys()
+                    .<Set<Principal>, PrincipalContext> build();
+
+    private final int[] ids;
+
+    private final String[] unknownNames;
+
+    private final int internedCount;
+
+    private final int sourceSize;
+
+    private final int sourceHash;
+
+    private final int hash;
+
+    private PrincipalContext(final int[] ids, final String[] unknownNames,
+            final int internedCount, final int sourceSize,
+            final int sourceHash) {
+        this.ids = ids;
+        this.unknownNames = unknownNames;
+        this.internedCount = internedCount;
+        this.sourceSize = sourceSize;
+        this.sourceHash = sourceHash;
+        this.hash = 31 * Arrays.hashCode(ids) + Arrays.hashCode(unknownNames);
+    }
+
+    /**
+     * Get the context for a principal set, resolving it on first use.
+     *
+     * @param principals the principals of a session
+     * @return the context
+     */
+    public static PrincipalContext of(final Set<Principal> principals) {
+        PrincipalContext context = CONTEXTS.getIfPresent(principals);
+        if (context == null || !context.isCurrent(principals)) {
+            context = resolve(principals);
+            CONTEXTS.put(principals, context);
+        }
+        return context;
+    }
+
+    private static PrincipalContext resolve(final Set<Principal> principals) {
+        // read the count first, so that a name interned during resolution
+        // leaves the context stale rather than wrong
+        final int internedCount = CompiledAcl.internedPrincipalCount();
+        final int sourceHash = principals.hashCode();
+        final int[] ids = new int[principals.size()];
+        final List<String> unknown = new ArrayList<String>(0);
+        int known = 0;
+        for (final Principal p : principals) {
+            final int id = CompiledAcl.existingPrincipalId(p.getName());
+            if (id < 0) {
+                unknown.add(p.getName());
+            } else {
+                ids[known++] = id;
+            }
+        }
+        Arrays.sort(ids, 0, known);
+        int unique = 0;
+        for (int j = 0; j < known; j++) {
+            if (j == 0 || ids[j] != ids[j - 1]) {
+                ids[unique++] = ids[j];
+            }
+        }
+        final String[] unknownNames =
+                new TreeSet<String>(unknown).toArray(new String[0]);
+        return new PrincipalContext(Arrays.copyOf(ids, unique), unknownNames,
+                internedCount, principals.size(), sourceHash);
+    }
+
+    private boolean isCurrent(final Set<Principal> principals) {
+        if (principals.size() != sourceSize ||
+                principals.hashCode() != sourceHash) {
+            return false;
+        }
+        return unknownNames.length == 0 ||
+                internedCount == CompiledAcl.internedPrincipalCount();
+    }
+
+    /**
+     * @return the interned principal ids in ascending order; not to be
+     *         modified
+     */
+    public int[] getIds() {
+        return ids;
+    }
+
+    /**
+     * @return the names of the principals without interned ids in ascending
+     *         order; not to be modified
+     */
+    String[] getUnknownNames() {
+        return unknownNames;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof PrincipalContext)) {
+            return false;
+        }
+        final PrincipalContext that = (PrincipalContext) obj;
+        return hash == that.hash && Arrays.equals(ids, that.ids) &&
+                Arrays.equals(unknownNames, that.unknownNames);
+    }
+}
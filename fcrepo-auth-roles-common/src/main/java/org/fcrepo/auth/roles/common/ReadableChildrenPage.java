@@ -0,0 +1,65 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.modeshape.jcr.value.Path;
+
+/**
+ * One page of the readable children of a node, with the token to pass back
+ * for the next page.
+ */
+public class ReadableChildrenPage {
+
+    private final List<Path> children;
+
+    private final String continuationToken;
+
+    /**
+     * @param children the readable children in this page
+     * @param continuationToken the token for the next page, or null if there
+     *        are no more children
+     */
+    public ReadableChildrenPage(final List<Path> children,
+            final String continuationToken) {
+        this.children = Collections.unmodifiableList(children);
+        this.continuationToken = continuationToken;
+    }
+
+    /**
+     * @return the readable children in this page, in repository order
+     */
+    public List<Path> getChildren() {
+        return children;
+    }
+
+    /**
+     * @return the token for the next page, or null if there are no more
+     *         children
+     */
+    public String getContinuationToken() {
+        return continuationToken;
+    }
+
+    /**
+     * @return true if more children may follow
+     */
+    public boolean hasMore() {
+        return continuationToken != null;
+    }
+}
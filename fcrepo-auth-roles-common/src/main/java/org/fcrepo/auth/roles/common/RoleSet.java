@@ -0,0 +1,150 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Read-only set of role names backed by a bitmask over the role names of one
+ * {@link CompiledAcl}. ACLs use few role names, so membership tests scan the
+ * names of the set bits.
+ * <p>
+ * The first {@value #MAX_ROLE_BITS} role names seen in any ACL are also given
+ * a bit of their own, shared by all ACLs, and a role set carries the
+ * {@link #getRoleBits() bits} of its roles as resolved, so a PEP can test
+ * for the roles it knows with a mask instead of by name.
+ */
+public final class RoleSet extends AbstractSet<String> {
+
+    /**
+     * The most role names that are given a shared bit.
+     */
+    static final int MAX_ROLE_BITS = 64;
+
+    private static final ConcurrentMap<String, Long> ROLE_BITS =
+            new ConcurrentHashMap<String, Long>();
+
+    /**
+     * The empty role set.
+     */
+    public static final RoleSet EMPTY = new RoleSet(0, new String[0], 0);
+
+    private final long mask;
+
+    private final String[] names;
+
+    private final long roleBits;
+
+    /**
+     * @param mask the role bits
+     * @param names the role names, indexed by bit; not copied
+     * @param roleBits the shared bits of the roles
+     */
+    RoleSet(final long mask, final String[] names, final long roleBits) {
+        this.mask = mask;
+        this.names = names;
+        this.roleBits = roleBits;
+    }
+
+    /**
+     * Get the shared bit of a role name, giving it one if it has none yet.
+     *
+     * @param role a role name
+     * @return the bit, or zero if all {@value #MAX_ROLE_BITS} bits are taken
+     *         by other names
+     */
+    public static long roleBit(final String role) {
+        final Long bit = ROLE_BITS.get(role);
+        if (bit != null) {
+            return bit;
+        }
+        synchronized (ROLE_BITS) {
+            final Long existing = ROLE_BITS.get(role);
+            if (existing != null) {
+                return existing;
+            }
+            if (ROLE_BITS.size() >= MAX_ROLE_BITS) {
+                return 0;
+            }
+            final long created = 1L << ROLE_BITS.size();
+            ROLE_BITS.put(role, created);
+            return created;
+        }
+    }
+
+    /**
+     * @return the shared bits, as given by {@link #roleBit(String)}, of the
+     *         roles in this set that have one
+     */
+    public long getRoleBits() {
+        return roleBits;
+    }
+
+    @Override
+    public boolean contains(final Object o) {
+        long remaining = mask;
+        while (remaining != 0) {
+            final int bit = Long.numberOfTrailingZeros(remaining);
+            if (names[bit].equals(o)) {
+                return true;
+            }
+            remaining &= remaining - 1;
+        }
+        return false;
+    }
+
+    @Override
+    public int size() {
+        return Long.bitCount(mask);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return mask == 0;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<String>() {
+
+            private long remaining = mask;
+
+            @Override
+            public boolean hasNext() {
+                return remaining != 0;
+            }
+
+            @Override
+            public String next() {
+                if (remaining == 0) {
+                    throw new NoSuchElementException();
+                }
+                final int bit = Long.numberOfTrailingZeros(remaining);
+                remaining &= remaining - 1;
+                return names[bit];
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
@@ -0,0 +1,238 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.auth.roles.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.argThat;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+
+import org.fcrepo.auth.roles.common.Constants.JcrName;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentMatcher;
+import org.modeshape.jcr.ExecutionContext;
+import org.modeshape.jcr.value.Path;
+import org.modeshape.jcr.value.PathFactory;
+
+/**
+ * Tests the effective roles lookups of the AccessRolesProvider.
+ */
+public class AccessRolesProviderTest {
+
+    private final PathFactory paths = new ExecutionContext()
+            .getValueFactories().getPathFactory();
+
+    private AccessRolesProvider provider = null;
+
+    private Session session = null;
+
+    private Node aclNode = null;
+
+    private Node rootNode = null;
+
+    @Before
+    public void setUp() throws RepositoryException {
+        provider = new AccessRolesProvider();
+        session = mock(Session.class);
+        rootNode = mock(Node.class);
+        when(rootNode.getParent()).thenThrow(new ItemNotFoundException());
+        when(rootNode.getDepth()).thenReturn(0);
+        when(session.getRootNode()).thenReturn(rootNode);
+
+        aclNode = mock(Node.class);
+        when(aclNode.getPath()).thenReturn("/a");
+        when(aclNode.getDepth()).thenReturn(1);
+        when(aclNode.getParent()).thenReturn(rootNode);
+        when(aclNode.isNodeType(JcrName.rbaclAssignable.getExpanded()))
+                .thenReturn(true);
+        final Node rbacl = mock(Node.class);
+        when(aclNode.getNode(JcrName.rbacl.getExpanded())).thenReturn(rbacl);
+        final Node assignment = mock(Node.class);
+        final NodeIterator assignments = mock(NodeIterator.class);
+        when(assignments.hasNext()).thenReturn(true, false, true, false);
+        when(assignments.nextNode()).thenReturn(assignment);
+        when(rbacl.getNodes()).thenReturn(assignments);
+        final Property principal = mock(Property.class);
+        when(principal.getString()).thenReturn("exampleadmin");
+        when(assignment.getProperty(JcrName.principal.getExpanded()))
+                .thenReturn(principal);
+        final Value role = mock(Value.class);
+        when(role.toString()).thenReturn("admin");
+        final Property roles = mock(Property.class);
+        when(roles.getValues()).thenReturn(new Value[] {role});
+        when(assignment.getProperty(JcrName.role.getExpanded())).thenReturn(
+                roles);
+        when(session.nodeExists("/a")).thenReturn(true);
+        when(session.getNode("/a")).thenReturn(aclNode);
+    }
+
+    @Test
+    public void testFindRolesForPathIsCached() throws RepositoryException {
+        final Path path = paths.create("/a");
+        final Map<String, List<String>> expected =
+                Collections.singletonMap("exampleadmin", Collections
+                        .singletonList("admin"));
+        assertEquals(expected, provider.findRolesForPath(path, session));
+        assertEquals(expected, provider.findRolesForPath(path, session));
+        verify(session, times(1)).getNode("/a");
+    }
+
+    @Test
+    public void testInvalidateCaches() throws RepositoryException {
+        final Path path = paths.create("/a");
+        provider.findRolesForPath(path, session);
+        provider.invalidateCaches();
+        provider.findRolesForPath(path, session);
+        verify(session, times(2)).getNode("/a");
+    }
+
+    @Test
+    public void testMissingAclIsCached() throws RepositoryException {
+        final Path path = paths.createRootPath();
+        assertEquals(AccessRolesProvider.DEFAULT_ACCESS_ROLES, provider
+                .findRolesForPath(path, session));
+        assertEquals(AccessRolesProvider.DEFAULT_ACCESS_ROLES, provider
+                .findRolesForPath(path, session));
+        verify(session, times(1)).getRootNode();
+    }
+
+    @Test
+    public void testMissingPathsAreRemembered() throws RepositoryException {
+        final Map<String, List<String>> expected =
+                Collections.singletonMap("exampleadmin", Collections
+                        .singletonList("admin"));
+        assertEquals(expected, provider.findRolesForPath(paths
+                .create("/a/new/one"), session));
+        assertEquals(expected, provider.findRolesForPath(paths
+                .create("/a/new/two"), session));
+        verify(session, times(1)).nodeExists("/a/new");
+        verify(session, never()).getNode("/a/new");
+    }
+
+    @Test
+    public void testPatchKeepsRolesOfDuplicateAssignments()
+        throws RepositoryException {
+        final Node node = mock(Node.class);
+        when(node.getPath()).thenReturn("/b");
+        when(node.getSession()).thenReturn(session);
+        when(node.isNodeType(JcrName.rbaclAssignable.getExpanded()))
+                .thenReturn(true);
+        when(node.hasNode(JcrName.rbacl.getExpanded())).thenReturn(true);
+        final Node rbacl = mock(Node.class);
+        when(node.getNode(JcrName.rbacl.getExpanded())).thenReturn(rbacl);
+        final Node first = assignment("alice", "reader");
+        final Node duplicate = assignment("alice", "writer");
+        final NodeIterator assignments = mock(NodeIterator.class);
+        when(assignments.hasNext()).thenReturn(true, true, false);
+        when(assignments.nextNode()).thenReturn(first, duplicate);
+        when(rbacl.getNodes()).thenReturn(assignments);
+        final Node added = mock(Node.class);
+        when(rbacl.addNode(JcrName.assignment.getExpanded(),
+                JcrName.Assignment.getExpanded())).thenReturn(added);
+
+        provider.patchRoles(node, Collections.singletonMap("bob", Collections
+                .singleton("admin")));
+
+        verify(first).setProperty(eq(JcrName.role.getExpanded()),
+                argThat(new ArgumentMatcher<String[]>() {
+
+                    @Override
+                    public boolean matches(final Object roles) {
+                        return new HashSet<String>(Arrays
+                                .asList((String[]) roles))
+                                .equals(new HashSet<String>(Arrays.asList(
+                                        "reader", "writer")));
+                    }
+                }));
+        verify(duplicate).remove();
+        verify(first, never()).remove();
+        verify(added).setProperty(JcrName.principal.getExpanded(), "bob");
+    }
+
+    @Test
+    public void testUnchangedPatchLeavesIndexClean()
+        throws RepositoryException {
+        final Node node = assignableNode(assignment("alice", "reader"));
+        provider.patchRoles(node, Collections.singletonMap("alice",
+                Collections.singleton("reader")));
+        assertEquals(0, provider.getAclPathIndex().size());
+    }
+
+    @Test
+    public void testChangedPatchMarksIndex() throws RepositoryException {
+        final Node node = assignableNode(assignment("alice", "reader"));
+        provider.patchRoles(node, Collections.singletonMap("alice",
+                Collections.singleton("writer")));
+        assertEquals(1, provider.getAclPathIndex().size());
+    }
+
+    private Node assignableNode(final Node assignment)
+        throws RepositoryException {
+        final Node node = mock(Node.class);
+        when(node.getPath()).thenReturn("/b");
+        when(node.getSession()).thenReturn(session);
+        when(node.isNodeType(JcrName.rbaclAssignable.getExpanded()))
+                .thenReturn(true);
+        when(node.hasNode(JcrName.rbacl.getExpanded())).thenReturn(true);
+        final Node rbacl = mock(Node.class);
+        when(node.getNode(JcrName.rbacl.getExpanded())).thenReturn(rbacl);
+        final NodeIterator assignments = mock(NodeIterator.class);
+        when(assignments.hasNext()).thenReturn(true, false);
+        when(assignments.nextNode()).thenReturn(assignment);
+        when(rbacl.getNodes()).thenReturn(assignments);
+        return node;
+    }
+
+    private static Node assignment(final String principalName,
+            final String roleName) throws RepositoryException {
+        final Node assignment = mock(Node.class);
+        final Property principal = mock(Property.class);
+        when(principal.getString()).thenReturn(principalName);
+        when(assignment.getProperty(JcrName.principal.getExpanded()))
+                .thenReturn(principal);
+        final Value role = mock(Value.class);
+        when(role.getString()).thenReturn(roleName);
+        when(role.toString()).thenReturn(roleName);
+        final Property roles = mock(Property.class);
+        when(roles.getValues()).thenReturn(new Value[] {role});
+        when(assignment.hasProperty(JcrName.role.getExpanded())).thenReturn(
+                true);
+        when(assignment.getProperty(JcrName.role.getExpanded())).thenReturn(
+                roles);
+        return assignment;
+    }
+
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.auth.roles.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.fcrepo.auth.roles.common.Constants.JcrName;
+import org.junit.Before;
+import org.junit.Test;
+import org.modeshape.jcr.ExecutionContext;
+import org.modeshape.jcr.value.Path;
+import org.modeshape.jcr.value.PathFactory;
+
+import com.google.common.base.Optional;
+
+/**
+ * Tests the governing ACL lookups of the AclPathIndex.
+ */
+public class AclPathIndexTest {
+
+    private final PathFactory paths = new ExecutionContext()
+            .getValueFactories().getPathFactory();
+
+    private AclPathIndex index = null;
+
+    private Session session = null;
+
+    @Before
+    public void setUp() throws RepositoryException {
+        index = new AclPathIndex();
+        session = mock(Session.class, RETURNS_DEEP_STUBS);
+        when(session.getNamespaceURI(JcrName.NS_PREFIX)).thenReturn(
+                JcrName.NS_URI);
+        when(session.getRootNode().isNodeType(anyString())).thenReturn(false);
+
+        final Node acl = mock(Node.class);
+        when(acl.getPath()).thenReturn("/a/b");
+        final NodeIterator acls = mock(NodeIterator.class);
+        when(acls.hasNext()).thenReturn(true, false);
+        when(acls.nextNode()).thenReturn(acl);
+        when(
+                session.getWorkspace().getQueryManager().createQuery(
+                        anyString(), anyString()).execute().getNodes())
+                .thenReturn(acls);
+    }
+
+    @Test
+    public void testUnknownUntilBuilt() {
+        assertNull(index.findGoverningAcl(paths.create("/a/b/c")));
+    }
+
+    @Test
+    public void testFindGoverningAcl() throws RepositoryException {
+        index.rebuild(session);
+        assertEquals(paths.create("/a/b"), index.findGoverningAcl(
+                paths.create("/a/b/c/d")).get());
+        assertEquals(paths.create("/a/b"), index.findGoverningAcl(
+                paths.create("/a/b")).get());
+        assertFalse(index.findGoverningAcl(paths.create("/a")).isPresent());
+        assertFalse(index.findGoverningAcl(paths.create("/x/y")).isPresent());
+    }
+
+    @Test
+    public void testDirtyPathIsUnknown() throws RepositoryException {
+        index.rebuild(session);
+        index.markDirty(session, "/a");
+        assertNull(index.findGoverningAcl(paths.create("/a/b/c")));
+        assertEquals(Optional.<Path> absent(), index.findGoverningAcl(paths
+                .create("/x")));
+
+        when(session.nodeExists("/a")).thenReturn(true);
+        when(session.getNode("/a").isNodeType(
+                JcrName.rbaclAssignable.getExpanded())).thenReturn(true);
+        index.refresh(session, "/a");
+        assertEquals(paths.create("/a/b"), index.findGoverningAcl(
+                paths.create("/a/b/c")).get());
+        assertEquals(paths.create("/a"), index.findGoverningAcl(
+                paths.create("/a/x")).get());
+    }
+
+    @Test
+    public void testDirtyMarkExpires() throws Exception {
+        index.rebuild(session);
+        index.setDirtyTimeToLiveMillis(50);
+        index.markDirty(session, "/a");
+        assertNull(index.findGoverningAcl(paths.create("/a/b/c")));
+        Thread.sleep(100);
+        assertEquals(paths.create("/a/b"), index.findGoverningAcl(
+                paths.create("/a/b/c")).get());
+    }
+
+    @Test
+    public void testRebuildClearsDirtyMarks() throws RepositoryException {
+        index.rebuild(session);
+        index.markDirty(session, "/a");
+        index.rebuild(session);
+        assertFalse(index.findGoverningAcl(paths.create("/a")).isPresent());
+    }
+
+    @Test
+    public void testRemoveSubtree() throws RepositoryException {
+        index.rebuild(session);
+        assertFalse(index.removeSubtree(session, "/x"));
+        assertFalse(index.removeSubtree(session, "/a/b/c"));
+        assertTrue(index.removeSubtree(session, "/a"));
+        assertFalse(index.findGoverningAcl(paths.create("/a/b/c"))
+                .isPresent());
+    }
+
+    @Test
+    public void testRefreshWithoutAclShrinksIndex() throws RepositoryException {
+        index.rebuild(session);
+        assertEquals(2, index.size());
+        index.markDirty(session, "/x/y/z");
+        assertEquals(5, index.size());
+        index.refresh(session, "/x/y/z");
+        assertEquals(2, index.size());
+        index.refresh(session, "/a/b/c/d");
+        assertEquals(2, index.size());
+        assertFalse(index.refreshSubtree(session, "/a/x"));
+        assertEquals(2, index.size());
+        assertEquals(paths.create("/a/b"), index.findGoverningAcl(
+                paths.create("/a/b/c/d")).get());
+    }
+
+    @Test
+    public void testRemoveSubtreePrunesAncestors() throws RepositoryException {
+        index.rebuild(session);
+        index.removeSubtree(session, "/a/b");
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void testRemoveSubtreeBeforeBuild() throws RepositoryException {
+        assertTrue(index.removeSubtree(session, "/x"));
+    }
+}
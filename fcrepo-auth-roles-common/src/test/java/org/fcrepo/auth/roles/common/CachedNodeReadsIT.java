@@ -0,0 +1,158 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.fcrepo.auth.roles.common.Constants.JcrName;
+import org.fcrepo.http.commons.session.SessionFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.modeshape.jcr.ExecutionContext;
+import org.modeshape.jcr.value.Path;
+import org.modeshape.jcr.value.PathFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+
+/**
+ * Checks that ACLs read through ModeShape's node cache match the ACLs read
+ * through the JCR API. It lives in this package to reach the package-private
+ * reader.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration("/spring-test/cached-reads.xml")
+public class CachedNodeReadsIT {
+
+    private final PathFactory paths = new ExecutionContext()
+            .getValueFactories().getPathFactory();
+
+    @Autowired
+    private SessionFactory sessionFactory;
+
+    private Session session = null;
+
+    private Node object = null;
+
+    @Before
+    public void setUp() throws RepositoryException {
+        session = sessionFactory.getInternalSession();
+        object =
+                session.getRootNode().addNode(
+                        "cachedNodeReadsIT-" + UUID.randomUUID());
+        final Map<String, Set<String>> roles =
+                new HashMap<String, Set<String>>();
+        roles.put("examplereader", Collections.singleton("reader"));
+        roles.put("examplewriter", new HashSet<String>(Arrays.asList(
+                "writer", "reader")));
+        new AccessRolesProvider().postRoles(object, roles);
+        // an assignment written by other means, with blank roles
+        final Node assignment =
+                object.getNode(JcrName.rbacl.getExpanded()).addNode(
+                        JcrName.assignment.getExpanded(),
+                        JcrName.Assignment.getExpanded());
+        assignment.setProperty(JcrName.principal.getExpanded(),
+                "exampleadmin");
+        assignment.setProperty(JcrName.role.getExpanded(), new String[] {
+                "admin", "", " "});
+        session.save();
+    }
+
+    @After
+    public void tearDown() throws RepositoryException {
+        object.remove();
+        session.save();
+        session.logout();
+    }
+
+    @Test
+    public void testCachedReadsMatchJcrReads() throws RepositoryException {
+        assertTrue("The node cache must be readable in this ModeShape",
+                CachedNodeAclReader.isAvailable(session));
+        final Path child =
+                paths.create(object.getPath() + "/not/yet/created");
+        final AccessRolesProvider jcrReads = new AccessRolesProvider();
+        final AccessRolesProvider cachedReads = new AccessRolesProvider();
+        cachedReads.setCachedNodeReads(true);
+        final Map<String, List<String>> expected =
+                jcrReads.findRolesForPath(child, session);
+        assertEquals(Collections.singletonList("admin"), expected
+                .get("exampleadmin"));
+        final long reads = count("cached-node-reads");
+        final long fallbacks = count("cached-node-reads", "fallbacks");
+        assertEquals(sorted(expected), sorted(cachedReads.findRolesForPath(
+                child, session)));
+        assertEquals("The node cache must have been read", reads + 1,
+                count("cached-node-reads"));
+        assertEquals(fallbacks, count("cached-node-reads", "fallbacks"));
+    }
+
+    @Test
+    public void testFindGoverningAcl() throws RepositoryException {
+        final Path aclPath = paths.create(object.getPath());
+        final CachedNodeAclReader.Result result =
+                CachedNodeAclReader.findGoverningAcl(paths.create(object
+                        .getPath() + "/not/yet/created"), session);
+        assertEquals(aclPath, result.aclPath);
+        assertEquals(sorted(new AccessRolesProvider().getRolesForAclPath(
+                aclPath, session)), sorted(result.acl.toMap()));
+
+        final CachedNodeAclReader.Result none =
+                CachedNodeAclReader.findGoverningAcl(paths
+                        .create("/cachedNodeReadsIT-none/child"), session);
+        assertNull(none.aclPath);
+        assertTrue(none.acl.isEmpty());
+    }
+
+    private static long count(final String... names) {
+        final MetricRegistry registry =
+                SharedMetricRegistries
+                        .getOrCreate(PermissionMetrics.REGISTRY_NAME);
+        return registry.meter(name(AccessRolesProvider.class.getName(), names))
+                .getCount();
+    }
+
+    private static Map<String, Set<String>> sorted(
+            final Map<String, List<String>> acl) {
+        final Map<String, Set<String>> result =
+                new HashMap<String, Set<String>>();
+        for (final Map.Entry<String, List<String>> entry : acl.entrySet()) {
+            result.put(entry.getKey(), new HashSet<String>(entry.getValue()));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.auth.roles.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests compiled ACL role resolution.
+ */
+public class CompiledAclTest {
+
+    private Map<String, List<String>> data = null;
+
+    @Before
+    public void setUp() {
+        data = new HashMap<String, List<String>>();
+        data.put("alice", Arrays.asList("reader"));
+        data.put("editors", Arrays.asList("writer", "reader"));
+    }
+
+    @Test
+    public void testResolve() {
+        final CompiledAcl acl = CompiledAcl.compile(data);
+        final Set<String> roles =
+                AbstractRolesPEP.resolveUserRoles(acl, principals("alice",
+                        "editors", "EVERYONE"));
+        assertEquals(new HashSet<String>(Arrays.asList("reader", "writer")),
+                roles);
+        assertTrue(roles.contains("writer"));
+        assertFalse(roles.contains("admin"));
+    }
+
+    @Test
+    public void testResolvedRoleBits() {
+        final CompiledAcl acl = CompiledAcl.compile(data);
+        final RoleSet roles =
+                (RoleSet) AbstractRolesPEP.resolveUserRoles(acl, principals(
+                        "alice", "editors"));
+        assertEquals(RoleSet.roleBit("reader") | RoleSet.roleBit("writer"),
+                roles.getRoleBits());
+        assertEquals(RoleSet.roleBit("reader"), RoleSet.roleBit("reader"));
+        assertEquals(0, RoleSet.EMPTY.getRoleBits());
+    }
+
+    @Test
+    public void testNoMatchingPrincipals() {
+        final CompiledAcl acl = CompiledAcl.compile(data);
+        assertTrue(AbstractRolesPEP.resolveUserRoles(acl,
+                principals("bob")).isEmpty());
+        assertTrue(AbstractRolesPEP.resolveUserRoles(CompiledAcl.EMPTY,
+                principals("alice")).isEmpty());
+    }
+
+    @Test
+    public void testToMap() {
+        final Map<String, List<String>> map =
+                CompiledAcl.compile(data).toMap();
+        assertEquals(Collections.singletonList("reader"), map.get("alice"));
+        assertEquals(new HashSet<String>(data.get("editors")),
+                new HashSet<String>(map.get("editors")));
+    }
+
+    @Test
+    public void testRoleNamesAreLocalToEachAcl() {
+        for (int i = 0; i < 2 * CompiledAcl.MAX_MASK_ROLES; i++) {
+            CompiledAcl.compile(Collections.singletonMap("alice", Arrays
+                    .asList("role" + i)));
+        }
+        final CompiledAcl acl = CompiledAcl.compile(data);
+        assertEquals(new HashSet<String>(Arrays.asList("reader", "writer")),
+                AbstractRolesPEP.resolveUserRoles(acl, principals("editors")));
+    }
+
+    @Test
+    public void testManyRolesInOneAcl() {
+        final List<String> roles = new ArrayList<String>();
+        for (int i = 0; i <= CompiledAcl.MAX_MASK_ROLES; i++) {
+            roles.add("role" + i);
+        }
+        data.put("bob", roles);
+        final CompiledAcl acl = CompiledAcl.compile(data);
+        final Set<String> resolved =
+                AbstractRolesPEP.resolveUserRoles(acl, principals("bob",
+                        "alice"));
+        assertEquals(roles.size() + 1, resolved.size());
+        assertTrue(resolved.contains("role" + CompiledAcl.MAX_MASK_ROLES));
+        assertTrue(resolved.contains("reader"));
+        assertEquals(new HashSet<String>(roles), new HashSet<String>(acl
+                .toMap().get("bob")));
+    }
+
+    private static Set<Principal> principals(final String... names) {
+        final Set<Principal> result = new HashSet<Principal>();
+        for (final String name : names) {
+            result.add(new Principal() {
+
+                @Override
+                public String getName() {
+                    return name;
+                }
+            });
+        }
+        return result;
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.fcrepo.http.commons.session.SessionFactory;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Tests the per-thread internal sessions.
+ */
+public class InternalSessionProviderTest {
+
+    private SessionFactory sessionFactory = null;
+
+    private InternalSessionProvider provider = null;
+
+    @Before
+    public void setUp() throws RepositoryException {
+        sessionFactory = mock(SessionFactory.class);
+        when(sessionFactory.getInternalSession()).thenAnswer(
+                new Answer<Session>() {
+
+                    @Override
+                    public Session answer(final InvocationOnMock invocation) {
+                        final Session session = mock(Session.class);
+                        when(session.isLive()).thenReturn(true);
+                        return session;
+                    }
+                });
+        provider = new InternalSessionProvider(sessionFactory);
+    }
+
+    @Test
+    public void testSessionIsReusedOnOneThread() throws Exception {
+        assertSame(provider.getSession(), provider.getSession());
+        assertNotSame(provider.getSession(), sessionOnNewThread());
+    }
+
+    @Test
+    public void testSessionOfEndedThreadIsLoggedOut() throws Exception {
+        final Session session = sessionOnNewThread();
+        for (int i = 0; i < 20 && provider.size() > 0; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        assertEquals(0, provider.size());
+        verify(session).logout();
+    }
+
+    @Test
+    public void testCloseLogsOutSessions() throws Exception {
+        final Session session = provider.getSession();
+        provider.close();
+        verify(session).logout();
+        assertEquals(0, provider.size());
+    }
+
+    private Session sessionOnNewThread() throws InterruptedException {
+        final AtomicReference<Session> session = new AtomicReference<Session>();
+        final Thread thread = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    session.set(provider.getSession());
+                } catch (final RepositoryException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        thread.start();
+        thread.join();
+        return session.get();
+    }
+}
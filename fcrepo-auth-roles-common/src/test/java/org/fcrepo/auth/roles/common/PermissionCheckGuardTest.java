@@ -0,0 +1,46 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests detection of nested permission checks.
+ */
+public class PermissionCheckGuardTest {
+
+    @Test
+    public void testNestedChecksAreDetected() {
+        assertFalse(PermissionCheckGuard.isActive());
+        assertFalse(PermissionCheckGuard.enter());
+        try {
+            assertTrue(PermissionCheckGuard.isActive());
+            assertTrue(PermissionCheckGuard.enter());
+            assertEquals(2, PermissionCheckGuard.depth());
+            PermissionCheckGuard.exit();
+            assertEquals(1, PermissionCheckGuard.depth());
+            assertTrue(PermissionCheckGuard.isActive());
+        } finally {
+            PermissionCheckGuard.exit();
+        }
+        assertFalse(PermissionCheckGuard.isActive());
+        assertEquals(0, PermissionCheckGuard.depth());
+    }
+}
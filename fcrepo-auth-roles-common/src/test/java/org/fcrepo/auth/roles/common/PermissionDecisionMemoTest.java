@@ -0,0 +1,104 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.security.Principal;
+import java.util.Collections;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.modeshape.jcr.ExecutionContext;
+import org.modeshape.jcr.value.Path;
+
+/**
+ * Tests the request-scoped memo of permission decisions.
+ */
+public class PermissionDecisionMemoTest {
+
+    private static final String[] READ = {"read"};
+
+    private final Path path = new ExecutionContext().getValueFactories()
+            .getPathFactory().create("/a/b");
+
+    private final Principal user = new Principal() {
+
+        @Override
+        public String getName() {
+            return "someone";
+        }
+    };
+
+    private final Set<Principal> principals = Collections.singleton(user);
+
+    private final Object pep = new Object();
+
+    @Before
+    public void setUp() {
+        PermissionDecisionMemo.begin();
+    }
+
+    @After
+    public void tearDown() {
+        PermissionDecisionMemo.end();
+    }
+
+    @Test
+    public void testNothingIsMemoizedOutsideARequest() {
+        PermissionDecisionMemo.end();
+        assertNull(PermissionDecisionMemo.current(pep));
+    }
+
+    @Test
+    public void testHitsAcrossGenerationChange() {
+        final PermissionDecisionMemo memo = PermissionDecisionMemo.current(pep);
+        assertNull(memo.get(path, READ, principals, user, 1));
+        memo.put(path, READ, principals, user, 1, true);
+        assertEquals(Boolean.TRUE, memo.get(path, READ, principals, user, 1));
+        // the access roles changed: earlier decisions no longer count
+        assertNull(memo.get(path, READ, principals, user, 2));
+        memo.put(path, READ, principals, user, 2, false);
+        assertEquals(Boolean.FALSE, memo.get(path, READ, principals, user, 2));
+        // a decision made under the old generation is not kept
+        memo.put(path, READ, principals, user, 1, true);
+        assertNull(memo.get(path, READ, principals, user, 2));
+    }
+
+    @Test
+    public void testActionsArePartOfTheKey() {
+        final PermissionDecisionMemo memo = PermissionDecisionMemo.current(pep);
+        memo.put(path, READ, principals, user, 1, true);
+        assertNull(memo.get(path, new String[] {"remove"}, principals, user,
+                1));
+    }
+
+    @Test
+    public void testEachPEPHasItsOwnMemo() {
+        final PermissionDecisionMemo memo = PermissionDecisionMemo.current(pep);
+        assertSame(memo, PermissionDecisionMemo.current(pep));
+        final PermissionDecisionMemo other =
+                PermissionDecisionMemo.current(new Object());
+        assertNotSame(memo, other);
+        memo.put(path, READ, principals, user, 1, true);
+        assertNull(other.get(path, READ, principals, user, 1));
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Tests the permission check metrics.
+ */
+public class PermissionMetricsTest {
+
+    private final MetricRegistry registry = new MetricRegistry();
+
+    @Test
+    public void testLaterGaugeReplacesEarlier() {
+        new PermissionMetrics(registry, PermissionMetricsTest.class)
+                .registerGauge(constant(1), "g");
+        new PermissionMetrics(registry, PermissionMetricsTest.class)
+                .registerGauge(constant(2), "g");
+        assertEquals(2, registry.getGauges().get(
+                MetricRegistry.name(PermissionMetricsTest.class, "g"))
+                .getValue());
+    }
+
+    @Test
+    public void testConcurrentRegistration() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<Thread>();
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        for (int i = 0; i < 8; i++) {
+            final int value = i;
+            final Thread thread = new Thread() {
+
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        new PermissionMetrics(registry,
+                                PermissionMetricsTest.class).registerGauge(
+                                constant(value), "g");
+                    } catch (final Throwable t) {
+                        synchronized (failures) {
+                            failures.add(t);
+                        }
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, failures.size());
+        assertEquals(1, registry.getGauges().size());
+    }
+
+    @Test
+    public void testDecisionMetersByAction() {
+        final PermissionMetrics metrics =
+                new PermissionMetrics(registry, PermissionMetricsTest.class);
+        metrics.markDecision(new String[] {"read"}, true);
+        metrics.markDecision(new String[] {"read"}, false);
+        metrics.markDecision(new String[] {"read"}, true);
+        metrics.markDecision(new String[] {"add_node", "remove"}, false);
+        assertEquals(2, meterCount("decisions", "read", "permit"));
+        assertEquals(1, meterCount("decisions", "read", "deny"));
+        assertEquals(1, meterCount("decisions", "add_node,remove", "deny"));
+        assertEquals(0, meterCount("decisions", "remove", "deny"));
+    }
+
+    @Test
+    public void testDecisionTime() {
+        final PermissionMetrics metrics =
+                new PermissionMetrics(registry, PermissionMetricsTest.class);
+        metrics.updateDecisionTime(System.nanoTime());
+        assertEquals(1, registry.getTimers().get(
+                MetricRegistry.name(PermissionMetricsTest.class, "decisions"))
+                .getCount());
+    }
+
+    private long meterCount(final String... names) {
+        return registry.getMeters().get(
+                MetricRegistry.name(PermissionMetricsTest.class, names))
+                .getCount();
+    }
+
+    private static Gauge<Integer> constant(final int value) {
+        return new Gauge<Integer>() {
+
+            @Override
+            public Integer getValue() {
+                return value;
+            }
+        };
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.auth.roles.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import java.security.Principal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Tests principal set resolution.
+ */
+public class PrincipalContextTest {
+
+    @Test
+    public void testSameSetReusesContext() {
+        final Set<Principal> principals = principals("alice", "staff");
+        assertSame(PrincipalContext.of(principals), PrincipalContext
+                .of(principals));
+    }
+
+    @Test
+    public void testEqualSetsHaveEqualContexts() {
+        CompiledAcl.compile(acl("alice", "staff"));
+        final PrincipalContext a =
+                PrincipalContext.of(principals("alice", "staff"));
+        final PrincipalContext b =
+                PrincipalContext.of(principals("staff", "alice"));
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+        final int[] expected =
+                new int[] {CompiledAcl.existingPrincipalId("alice"),
+                        CompiledAcl.existingPrincipalId("staff")};
+        Arrays.sort(expected);
+        assertArrayEquals(expected, a.getIds());
+    }
+
+    @Test
+    public void testRequestPrincipalsAreNotInterned() {
+        final PrincipalContext context =
+                PrincipalContext.of(principals("request-only-principal"));
+        assertEquals(0, context.getIds().length);
+        assertEquals(-1, CompiledAcl
+                .existingPrincipalId("request-only-principal"));
+        assertFalse(context.equals(PrincipalContext
+                .of(principals("another-request-principal"))));
+    }
+
+    @Test
+    public void testContextSeesPrincipalsNamedLater() {
+        final Set<Principal> principals = principals("later-principal");
+        assertEquals(0, PrincipalContext.of(principals).getIds().length);
+        CompiledAcl.compile(acl("later-principal"));
+        assertArrayEquals(new int[] {CompiledAcl
+                .existingPrincipalId("later-principal")}, PrincipalContext.of(
+                principals).getIds());
+    }
+
+    @Test
+    public void testChangedSetIsResolvedAgain() {
+        CompiledAcl.compile(acl("changing-user", "changing-group"));
+        final Set<Principal> principals = principals("changing-user");
+        final PrincipalContext before = PrincipalContext.of(principals);
+        principals.addAll(principals("changing-group"));
+        final PrincipalContext after = PrincipalContext.of(principals);
+        assertFalse(before.equals(after));
+        assertEquals(2, after.getIds().length);
+    }
+
+    private static Map<String, List<String>> acl(final String... names) {
+        final Map<String, List<String>> acl =
+                new HashMap<String, List<String>>();
+        for (final String name : names) {
+            acl.put(name, Collections.singletonList("reader"));
+        }
+        return acl;
+    }
+
+    private static Set<Principal> principals(final String... names) {
+        final Set<Principal> result = new HashSet<Principal>();
+        for (final String name : names) {
+            result.add(new Principal() {
+
+                @Override
+                public String getName() {
+                    return name;
+                }
+            });
+        }
+        return result;
+    }
+}
@@ -17,14 +17,32 @@
 package org.fcrepo.auth.roles.common.integration;
 
 import static javax.ws.rs.core.Response.Status.CREATED;
+import static javax.ws.rs.core.Response.Status.NOT_MODIFIED;
 import static javax.ws.rs.core.Response.Status.NO_CONTENT;
 import static javax.ws.rs.core.Response.Status.OK;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
+import org.apache.commons.codec.binary.Base64;
+import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPatch;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.AbstractHttpMessage;
+import org.apache.http.util.EntityUtils;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.type.TypeReference;
+import org.fcrepo.auth.roles.common.AccessRolesBatch;
 import org.fcrepo.auth.roles.common.AccessRolesProvider;
 import org.junit.Test;
 import org.slf4j.Logger;
@@ -142,4 +160,137 @@ public class AccessRolesIT extends AbstractCommonRolesIT {
                 getEffectiveRoles("testcommonobj1/testchildobj1"));
 
     }
+
+    /**
+     * Test method for
+     * {@link org.fcrepo.auth.roles.common.AccessRolesBatch#post(int, java.io.InputStream)}
+     * .
+     *
+     * @throws IOException
+     * @throws ClientProtocolException
+     */
+    @Test
+    public void testBatchRoles() throws ClientProtocolException, IOException {
+        final Map<String, Map<String, List<String>>> batch =
+                new LinkedHashMap<String, Map<String, List<String>>>();
+        // an invalid path is reported without stopping the batch
+        batch.put("/testcommonobj1/nullroles", null);
+        batch.put("/testcommonobj1", t_roles);
+        batch.put("/testcommonobj1/testchildobj1", admin_role);
+        batch.put("/testcommonobj1/nosuchobj", admin_role);
+        final ObjectMapper mapper = new ObjectMapper();
+
+        final HttpPost method =
+                new HttpPost(serverAddress + SUFFIX + "/batch?chunkSize=1");
+        setAuth(method, "fedoraAdmin");
+        method.addHeader("Content-Type", "application/json");
+        method.setEntity(new StringEntity(mapper.writeValueAsString(batch),
+                "utf-8"));
+        final HttpResponse response = client.execute(method);
+        assertEquals(OK.getStatusCode(), response.getStatusLine()
+                .getStatusCode());
+        final String content = EntityUtils.toString(response.getEntity());
+        logger.debug("batch response content: \n {}", content);
+        final Map<String, String> results =
+                mapper.readValue(content,
+                        new TypeReference<Map<String, String>>() {
+                        });
+
+        assertTrue(results.get("/testcommonobj1/nullroles").startsWith(
+                "invalid"));
+        assertEquals(AccessRolesBatch.RESULT_OK, results.get("/testcommonobj1"));
+        assertEquals(AccessRolesBatch.RESULT_OK, results
+                .get("/testcommonobj1/testchildobj1"));
+        assertEquals(AccessRolesBatch.RESULT_NOT_FOUND, results
+                .get("/testcommonobj1/nosuchobj"));
+        assertEquals("result must equal test data", t_roles,
+                getRoles("testcommonobj1"));
+        assertEquals("result must equal test data", admin_role,
+                getRoles("testcommonobj1/testchildobj1"));
+
+        // leave the objects without roles for the other tests
+        canDeleteRoles(null, "testcommonobj1/testchildobj1", false);
+        canDeleteRoles(null, "testcommonobj1", false);
+    }
+
+    /**
+     * Test method for
+     * {@link org.fcrepo.auth.roles.common.AccessRoles#patch(java.util.List, java.util.Map)}
+     * .
+     *
+     * @throws IOException
+     * @throws ClientProtocolException
+     */
+    @Test
+    public void testPatchRoles() throws ClientProtocolException, IOException {
+        assertEquals(CREATED.getStatusCode(), postRoles("testcommonobj1",
+                test_json_roles));
+
+        final Map<String, List<String>> patch =
+                new HashMap<String, List<String>>();
+        patch.put("examplereader", Collections.<String> emptyList());
+        patch.put("examplewriter", Collections.singletonList("reader"));
+        patch.put("examplepatcher", Collections.singletonList("reader"));
+        final HttpPatch method =
+                new HttpPatch(serverAddress + "testcommonobj1/" + SUFFIX);
+        setAuth(method, "fedoraAdmin");
+        method.addHeader("Content-Type", "application/json");
+        method.setEntity(new StringEntity(makeJson(patch), "utf-8"));
+        assertEquals(NO_CONTENT.getStatusCode(), getStatus(method));
+
+        final Map<String, List<String>> expected =
+                new HashMap<String, List<String>>();
+        expected.put("exampleadmin", Collections.singletonList("admin"));
+        expected.put("examplewriter", Collections.singletonList("reader"));
+        expected.put("examplepatcher", Collections.singletonList("reader"));
+        assertEquals("result must equal patched data", expected,
+                getRoles("testcommonobj1"));
+
+        canDeleteRoles(null, "testcommonobj1", false);
+    }
+
+    /**
+     * Test method for
+     * {@link org.fcrepo.auth.roles.common.AccessRoles#get(java.util.List, java.lang.String)}
+     * with a conditional request.
+     *
+     * @throws IOException
+     * @throws ClientProtocolException
+     */
+    @Test
+    public void testConditionalGetEffectiveRoles()
+        throws ClientProtocolException, IOException {
+        assertEquals(CREATED.getStatusCode(), postRoles("testcommonobj1",
+                test_json_roles));
+
+        final HttpResponse first =
+                execute(getEffectiveRolesMethod("testcommonobj1/testchildobj1"));
+        assertEquals(OK.getStatusCode(), first.getStatusLine().getStatusCode());
+        EntityUtils.consume(first.getEntity());
+        assertNotNull("must have an etag", first.getFirstHeader("ETag"));
+        final String etag = first.getFirstHeader("ETag").getValue();
+
+        final HttpGet revalidate =
+                getEffectiveRolesMethod("testcommonobj1/testchildobj1");
+        revalidate.addHeader("If-None-Match", etag);
+        assertEquals(NOT_MODIFIED.getStatusCode(), getStatus(revalidate));
+
+        // changing the governing roles changes the etag
+        assertEquals(CREATED.getStatusCode(), postRoles("testcommonobj1",
+                admin_json_role));
+        final HttpGet changed =
+                getEffectiveRolesMethod("testcommonobj1/testchildobj1");
+        changed.addHeader("If-None-Match", etag);
+        assertEquals(OK.getStatusCode(), getStatus(changed));
+
+        canDeleteRoles(null, "testcommonobj1", false);
+    }
+
+    private static void setAuth(final AbstractHttpMessage method,
+            final String username) {
+        // in test configuration we don't need real passwords
+        final String creds = username + ":password";
+        method.setHeader("Authorization", "Basic " +
+                new String(Base64.encodeBase64(creds.getBytes())));
+    }
 }
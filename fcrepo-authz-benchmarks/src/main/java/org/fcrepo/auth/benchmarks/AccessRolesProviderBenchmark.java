@@ -0,0 +1,58 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.auth.benchmarks;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.RepositoryException;
+
+import org.modeshape.jcr.value.Path;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks effective roles lookup in AccessRolesProvider, with warm caches
+ * and with caches invalidated before every lookup.
+ */
+@State(Scope.Thread)
+public class AccessRolesProviderBenchmark {
+
+    private int cursor = 0;
+
+    private Path nextPath(final RepositoryState state) {
+        final List<Path> paths = state.getPaths();
+        cursor = (cursor + 1) % paths.size();
+        return paths.get(cursor);
+    }
+
+    @Benchmark
+    public Map<String, List<String>> findRolesForPath(
+            final RepositoryState state) throws RepositoryException {
+        return state.getAccessRolesProvider().findRolesForPath(
+                nextPath(state), state.getSession());
+    }
+
+    @Benchmark
+    public Map<String, List<String>> findRolesForPathUncached(
+            final RepositoryState state) throws RepositoryException {
+        state.getAccessRolesProvider().invalidateCaches();
+        return state.getAccessRolesProvider().findRolesForPath(
+                nextPath(state), state.getSession());
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.auth.benchmarks;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.fcrepo.auth.roles.basic.BasicRolesPEP;
+import org.modeshape.jcr.value.Path;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Benchmarks the basic roles PEP, both the role decision alone and the full
+ * permission check including roles lookup.
+ */
+@State(Scope.Thread)
+public class BasicRolesPEPBenchmark {
+
+    private static final String[] READ = new String[] {"read"};
+
+    private static final String[] SET_PROPERTY = new String[] {"set_property"};
+
+    private static final Set<String> WRITER = Collections.singleton("writer");
+
+    private BasicRolesPEP pep;
+
+    private int cursor = 0;
+
+    /**
+     * Create a PEP backed by the benchmark repository.
+     *
+     * @param state the benchmark repository
+     */
+    @Setup
+    public void setUp(final RepositoryState state) {
+        pep = new BasicRolesPEP();
+        pep.setSessionFactory(state.getSessionFactory());
+        pep.setAccessRolesProvider(state.getAccessRolesProvider());
+    }
+
+    /**
+     * Release the PEP's internal sessions.
+     */
+    @TearDown
+    public void tearDown() {
+        pep.logoutInternalSessions();
+    }
+
+    private Path nextPath(final RepositoryState state) {
+        final List<Path> paths = state.getPaths();
+        cursor = (cursor + 1) % paths.size();
+        return paths.get(cursor);
+    }
+
+    @Benchmark
+    public boolean rolesHaveModeShapePermission(final RepositoryState state) {
+        return pep.rolesHaveModeShapePermission(nextPath(state),
+                SET_PROPERTY, state.getAllPrincipals(), state
+                        .getUserPrincipal(), WRITER);
+    }
+
+    @Benchmark
+    public boolean hasModeShapePermission(final RepositoryState state) {
+        return pep.hasModeShapePermission(nextPath(state), READ, state
+                .getAllPrincipals(), state.getUserPrincipal());
+    }
+}
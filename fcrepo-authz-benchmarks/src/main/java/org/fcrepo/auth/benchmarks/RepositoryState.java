@@ -0,0 +1,266 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.auth.benchmarks;
+
+import java.io.InputStream;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.fcrepo.auth.roles.common.AccessRolesChangeListener;
+import org.fcrepo.auth.roles.common.AccessRolesProvider;
+import org.fcrepo.http.commons.session.SessionFactory;
+import org.modeshape.jcr.ExecutionContext;
+import org.modeshape.jcr.JcrRepository;
+import org.modeshape.jcr.ModeShapeEngine;
+import org.modeshape.jcr.RepositoryConfiguration;
+import org.modeshape.jcr.api.nodetype.NodeTypeManager;
+import org.modeshape.jcr.value.Path;
+import org.modeshape.jcr.value.PathFactory;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * An in-memory ModeShape repository seeded with a content tree for the
+ * benchmarks. At each level the tree has fanOut children, of which the first
+ * continues down to the next level, so the tree is depth levels deep while
+ * its size stays at about depth * fanOut nodes. Each node carries an ACL with
+ * probability aclDensity; the root of the tree always carries one.
+ * <p>
+ * A change listener keeps the ACL path index current, as in a deployed
+ * repository, so the benchmarks measure the indexed lookups rather than the
+ * fallback taken while seeded paths are still marked as edited.
+ */
+@State(Scope.Benchmark)
+public class RepositoryState {
+
+    public static final String TREE_ROOT = "bench";
+
+    public static final String USER = "benchuser";
+
+    public static final String GROUP = "benchgroup";
+
+    @Param({"4", "12"})
+    public int depth;
+
+    @Param({"4"})
+    public int fanOut;
+
+    @Param({"0.0", "0.1", "0.5"})
+    public double aclDensity;
+
+    private ModeShapeEngine engine;
+
+    private JcrRepository repository;
+
+    private Session session;
+
+    private SessionFactory sessionFactory;
+
+    private AccessRolesProvider accessRolesProvider;
+
+    private AccessRolesChangeListener changeListener;
+
+    private final List<Path> paths = new ArrayList<Path>();
+
+    private Principal userPrincipal;
+
+    private Set<Principal> allPrincipals;
+
+    /**
+     * Start the repository and seed the tree.
+     *
+     * @throws Exception
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        engine = new ModeShapeEngine();
+        engine.start();
+        repository =
+                engine.deploy(RepositoryConfiguration.read(getClass()
+                        .getClassLoader().getResource(
+                                "benchmark-repository.json")));
+        session = repository.login();
+        try (InputStream cnd =
+                getClass().getClassLoader().getResourceAsStream(
+                        "cnd/access-control.cnd")) {
+            ((NodeTypeManager) session.getWorkspace().getNodeTypeManager())
+                    .registerNodeTypes(cnd, true);
+        }
+
+        sessionFactory = new SessionFactory() {
+
+            @Override
+            public Session getInternalSession() throws RepositoryException {
+                return repository.login();
+            }
+        };
+        accessRolesProvider = new AccessRolesProvider();
+
+        userPrincipal = new BenchmarkPrincipal(USER);
+        allPrincipals = new HashSet<Principal>();
+        allPrincipals.add(userPrincipal);
+        allPrincipals.add(new BenchmarkPrincipal(GROUP));
+        allPrincipals.add(new BenchmarkPrincipal("EVERYONE"));
+
+        seed();
+
+        // registering rebuilds the index, which clears the marks left by
+        // seeding
+        changeListener = new AccessRolesChangeListener();
+        changeListener.setSessionFactory(sessionFactory);
+        changeListener.setAccessRolesProvider(accessRolesProvider);
+        changeListener.register();
+        if (!accessRolesProvider.getAclPathIndex().isBuilt()) {
+            throw new IllegalStateException("ACL path index was not built");
+        }
+    }
+
+    /**
+     * Shut the repository down.
+     *
+     * @throws Exception
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        changeListener.unregister();
+        session.logout();
+        engine.shutdown().get();
+    }
+
+    private void seed() throws RepositoryException {
+        final Random random = new Random(depth * 31 + fanOut);
+        final PathFactory pathFactory =
+                new ExecutionContext().getValueFactories().getPathFactory();
+
+        Node parent = session.getRootNode().addNode(TREE_ROOT);
+        assignRoles(parent, "reader");
+        for (int level = 0; level < depth; level++) {
+            Node next = null;
+            for (int i = 0; i < fanOut; i++) {
+                final Node child = parent.addNode("n" + level + "_" + i);
+                if (random.nextDouble() < aclDensity) {
+                    assignRoles(child, i % 2 == 0 ? "writer" : "admin");
+                }
+                paths.add(pathFactory.create(child.getPath()));
+                if (next == null) {
+                    next = child;
+                }
+            }
+            parent = next;
+        }
+        session.save();
+        Collections.shuffle(paths, random);
+    }
+
+    private void assignRoles(final Node node, final String role)
+        throws RepositoryException {
+        final Map<String, Set<String>> data =
+                new HashMap<String, Set<String>>();
+        data.put(USER, Collections.singleton(role));
+        data.put(GROUP, Collections.singleton("reader"));
+        accessRolesProvider.postRoles(node, data);
+    }
+
+    /**
+     * @return a session with access to the whole tree
+     */
+    public Session getSession() {
+        return session;
+    }
+
+    /**
+     * @return a session factory whose internal sessions come from the
+     *         benchmark repository
+     */
+    public SessionFactory getSessionFactory() {
+        return sessionFactory;
+    }
+
+    /**
+     * @return the roles provider the tree was seeded with
+     */
+    public AccessRolesProvider getAccessRolesProvider() {
+        return accessRolesProvider;
+    }
+
+    /**
+     * @return the paths of every node in the tree, in random order
+     */
+    public List<Path> getPaths() {
+        return paths;
+    }
+
+    /**
+     * @return the user principal
+     */
+    public Principal getUserPrincipal() {
+        return userPrincipal;
+    }
+
+    /**
+     * @return the user, group and EVERYONE principals
+     */
+    public Set<Principal> getAllPrincipals() {
+        return allPrincipals;
+    }
+
+    /**
+     * A principal identified by name only.
+     */
+    public static class BenchmarkPrincipal implements Principal {
+
+        private final String name;
+
+        /**
+         * @param name the principal name
+         */
+        public BenchmarkPrincipal(final String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            return o instanceof BenchmarkPrincipal &&
+                    name.equals(((BenchmarkPrincipal) o).name);
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode();
+        }
+    }
+}
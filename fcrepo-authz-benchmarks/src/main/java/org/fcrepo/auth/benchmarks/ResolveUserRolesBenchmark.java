@@ -0,0 +1,83 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.auth.benchmarks;
+
+import java.security.Principal;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.RepositoryException;
+
+import org.fcrepo.auth.benchmarks.RepositoryState.BenchmarkPrincipal;
+import org.fcrepo.auth.roles.common.AbstractRolesPEP;
+import org.fcrepo.auth.roles.common.CompiledAcl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks matching request principals against an ACL. Needs no
+ * repository.
+ */
+@State(Scope.Thread)
+public class ResolveUserRolesBenchmark {
+
+    @Param({"2", "20", "200"})
+    public int aclEntries;
+
+    @Param({"3", "30"})
+    public int principals;
+
+    private Map<String, List<String>> acl;
+
+    private CompiledAcl compiledAcl;
+
+    private Set<Principal> allPrincipals;
+
+    /**
+     * Build an ACL and a principal set that overlap on half the principals.
+     */
+    @Setup
+    public void setUp() {
+        acl = new HashMap<String, List<String>>();
+        for (int i = 0; i < aclEntries; i++) {
+            acl.put("principal" + i, Arrays.asList("reader", "writer"));
+        }
+        allPrincipals = new HashSet<Principal>();
+        for (int i = 0; i < principals; i++) {
+            allPrincipals.add(new BenchmarkPrincipal("principal" +
+                    (i % 2 == 0 ? i : aclEntries + i)));
+        }
+        compiledAcl = CompiledAcl.compile(acl);
+    }
+
+    @Benchmark
+    public Set<String> resolveUserRoles() throws RepositoryException {
+        return AbstractRolesPEP.resolveUserRoles(acl, allPrincipals);
+    }
+
+    @Benchmark
+    public Set<String> resolveUserRolesCompiled() {
+        return AbstractRolesPEP.resolveUserRoles(compiledAcl, allPrincipals);
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.auth.benchmarks;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.fcrepo.auth.roles.common.InMemoryDecisionCache;
+import org.fcrepo.auth.xacml.FedoraXacmlPDPFactory;
+import org.fcrepo.auth.xacml.FedoraXacmlPEP;
+import org.modeshape.jcr.value.Path;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Benchmarks the XACML PEP decision against the built-in reader policy, with
+ * and without the decision cache.
+ */
+@State(Scope.Thread)
+public class XacmlPEPBenchmark {
+
+    private static final String[] READ = new String[] {"read"};
+
+    private static final Set<String> READER = Collections.singleton("reader");
+
+    @Param({"true", "false"})
+    public boolean decisionCache;
+
+    private FedoraXacmlPEP pep;
+
+    private int cursor = 0;
+
+    /**
+     * Create a PEP with a freshly initialized PDP.
+     *
+     * @param state the benchmark repository
+     * @throws Exception if the PDP cannot be initialized
+     */
+    @Setup
+    public void setUp(final RepositoryState state) throws Exception {
+        final FedoraXacmlPDPFactory pdpFactory = new FedoraXacmlPDPFactory();
+        pdpFactory.init();
+        pep = new FedoraXacmlPEP();
+        pep.setPdpFactory(pdpFactory);
+        pep.setSessionFactory(state.getSessionFactory());
+        pep.setAccessRolesProvider(state.getAccessRolesProvider());
+        if (decisionCache) {
+            pep.setDecisionCache(new InMemoryDecisionCache());
+        }
+    }
+
+    /**
+     * Release the PEP's internal sessions.
+     */
+    @TearDown
+    public void tearDown() {
+        pep.logoutInternalSessions();
+    }
+
+    @Benchmark
+    public boolean rolesHaveCachedPermission(final RepositoryState state) {
+        final List<Path> paths = state.getPaths();
+        cursor = (cursor + 1) % paths.size();
+        return pep.rolesHaveCachedPermission(paths.get(cursor),
+                READ, state.getAllPrincipals(), state.getUserPrincipal(),
+                READER);
+    }
+}
@@ -15,8 +15,14 @@
  */
 package org.fcrepo.auth.xacml;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.annotation.PostConstruct;
 
@@ -27,14 +33,64 @@ import org.jboss.security.xacml.interfaces.PolicyDecisionPoint;
 import org.jboss.security.xacml.interfaces.PolicyLocator;
 import org.jboss.security.xacml.interfaces.XACMLPolicy;
 import org.jboss.security.xacml.locators.JBossPolicyLocator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
+ * Builds and publishes the XACML Policy Decision Point. A reload builds a
+ * complete new PDP off to the side and publishes it with a single reference
+ * swap, so decisions in flight keep using the PDP they started with and never
+ * see a half-loaded policy set.
+ *
  * @author Gregory Jansen
  *
  */
 public class FedoraXacmlPDPFactory {
 
-    private PolicyDecisionPoint pdp = null;
+    private static final Logger log = LoggerFactory
+            .getLogger(FedoraXacmlPDPFactory.class);
+
+    private final AtomicReference<PolicyDecisionPoint> pdp =
+            new AtomicReference<PolicyDecisionPoint>();
+
+    private final AtomicLong policyVersion = new AtomicLong();
+
+    private volatile ModeShapePolicyLocator repositoryPolicyLocator = null;
+
+    private String policyConfigLocation = null;
+
+    private List<String> policyResources = new ArrayList<String>();
+
+    /**
+     * Set the locator of repository policies, which takes effect on the next
+     * {@link #reload()}. A {@link ModeShapePolicyLocator} given this factory
+     * sets itself once the repository is available.
+     *
+     * @param repositoryPolicyLocator locator for policies stored in the
+     *        repository, or null to use only the built-in policies
+     */
+    public void setRepositoryPolicyLocator(
+            final ModeShapePolicyLocator repositoryPolicyLocator) {
+        this.repositoryPolicyLocator = repositoryPolicyLocator;
+    }
+
+    /**
+     * @param policyConfigLocation classpath location of a JBoss PDP
+     *        configuration (e.g. policyConfig.xml). When set, the PDP is
+     *        configured entirely from that file.
+     */
+    public void setPolicyConfigLocation(final String policyConfigLocation) {
+        this.policyConfigLocation = policyConfigLocation;
+    }
+
+    /**
+     * @param policyResources classpath locations of policy documents (e.g.
+     *        policies/processor-role.xml) to load along with the built-in
+     *        policy
+     */
+    public void setPolicyResources(final List<String> policyResources) {
+        this.policyResources = new ArrayList<String>(policyResources);
+    }
 
     /**
      * Initialize a PDP and load policies
@@ -43,15 +99,45 @@ public class FedoraXacmlPDPFactory {
      */
     @PostConstruct
     public void init() throws Exception {
+        reload();
+    }
+
+    /**
+     * Build a new PDP from the current policy sources and publish it. If the
+     * new policies cannot be loaded the previous PDP stays in place.
+     *
+     * @throws Exception if the new PDP cannot be built
+     */
+    public synchronized void reload() throws Exception {
+        final PolicyDecisionPoint next;
+        if (policyConfigLocation != null) {
+            try (InputStream in = openResource(policyConfigLocation)) {
+                next = new JBossPDP(in);
+            }
+        } else {
+            next = buildPDP();
+        }
+        // publish the PDP before the version, so a reader that sees the new
+        // version also sees the new policies
+        pdp.set(next);
+        policyVersion.incrementAndGet();
+        log.info("Published policy set version {}", getPolicyVersion());
+    }
+
+    private PolicyDecisionPoint buildPDP() throws Exception {
         final PolicyType policyType =
                 BasicJavaPolicyFactory.constructReaderPolicy();
-        pdp = new JBossPDP();
+        final PolicyDecisionPoint next = new JBossPDP();
 
-        final XACMLPolicy policy = PolicyFactory.createPolicy(policyType);
         final Set<XACMLPolicy> policies = new HashSet<XACMLPolicy>();
-        policies.add(policy);
+        policies.add(PolicyFactory.createPolicy(policyType));
+        for (final String resource : policyResources) {
+            try (InputStream in = openResource(resource)) {
+                policies.add(PolicyFactory.createPolicy(in));
+            }
+        }
 
-        pdp.setPolicies(policies);
+        next.setPolicies(policies);
 
         // Add the basic locators also
         final Set<PolicyLocator> locators = new HashSet<PolicyLocator>();
@@ -61,15 +147,45 @@ public class FedoraXacmlPDPFactory {
         policyLocator.setPolicies(policies);
 
         locators.add(policyLocator);
+        if (repositoryPolicyLocator != null) {
+            locators.add(repositoryPolicyLocator);
+        }
+
+        next.setLocators(locators);
+        return next;
+    }
+
+    private static InputStream openResource(final String location)
+        throws IOException {
+        final InputStream in =
+                Thread.currentThread().getContextClassLoader()
+                        .getResourceAsStream(location);
+        if (in == null) {
+            throw new IOException("Policy resource not found: " + location);
+        }
+        return in;
+    }
 
-        pdp.setLocators(locators);
+    /**
+     * Get the version of the loaded policy set. The version changes whenever
+     * policies are (re)loaded, including changes to repository policies, so
+     * decisions tagged with an older version are stale.
+     *
+     * @return the policy set version
+     */
+    public long getPolicyVersion() {
+        if (repositoryPolicyLocator == null) {
+            return policyVersion.get();
+        }
+        return (policyVersion.get() << 32) +
+                repositoryPolicyLocator.getVersion();
     }
 
     /**
      * @return the XACML Policy Decision Point
      */
     public PolicyDecisionPoint getPDP() {
-        return this.pdp;
+        return this.pdp.get();
     }
 
 }
@@ -18,21 +18,27 @@ package org.fcrepo.auth.xacml;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.security.Principal;
 import java.util.Set;
 
 import org.fcrepo.auth.roles.common.AbstractRolesPEP;
+import org.jboss.security.xacml.core.JBossPDP;
 import org.jboss.security.xacml.core.model.context.ActionType;
 import org.jboss.security.xacml.core.model.context.AttributeType;
 import org.jboss.security.xacml.core.model.context.DecisionType;
 import org.jboss.security.xacml.core.model.context.EnvironmentType;
 import org.jboss.security.xacml.core.model.context.RequestType;
 import org.jboss.security.xacml.core.model.context.ResourceType;
+import org.jboss.security.xacml.core.model.context.ResultType;
 import org.jboss.security.xacml.core.model.context.SubjectType;
 import org.jboss.security.xacml.factories.RequestAttributeFactory;
 import org.jboss.security.xacml.factories.RequestResponseContextFactory;
+import org.jboss.security.xacml.interfaces.PolicyDecisionPoint;
 import org.jboss.security.xacml.interfaces.RequestContext;
 import org.jboss.security.xacml.interfaces.ResponseContext;
+import org.jboss.security.xacml.interfaces.XACMLConstants;
+import org.jboss.security.xacml.sunxacml.ctx.RequestCtx;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -48,6 +54,11 @@ public class FedoraXacmlPEP extends AbstractRolesPEP {
     @Autowired
     FedoraXacmlPDPFactory pdpFactory = null;
 
+    private final XacmlRequestBuilder requestBuilder =
+            new XacmlRequestBuilder();
+
+    private boolean decisionCachePathSensitive = true;
+
     /**
      * @param pdpFactory the pdpFactory to set
      */
@@ -55,6 +66,43 @@ public class FedoraXacmlPEP extends AbstractRolesPEP {
         this.pdpFactory = pdpFactory;
     }
 
+    /**
+     * Cached decisions are keyed by the full resource path by default. When
+     * the policies only distinguish ACL nodes from other content, set this to
+     * false to key them by that distinction instead and share decisions
+     * across paths.
+     *
+     * @param decisionCachePathSensitive whether decisions are cached per path
+     */
+    public void setDecisionCachePathSensitive(
+            final boolean decisionCachePathSensitive) {
+        this.decisionCachePathSensitive = decisionCachePathSensitive;
+    }
+
+    /**
+     * Cached decisions are tagged with the version of the policy set that
+     * produced them.
+     */
+    @Override
+    protected long getDecisionCacheVersion() {
+        return pdpFactory.getPolicyVersion();
+    }
+
+    @Override
+    protected Object getDecisionCacheResource(final String absPath) {
+        return decisionCachePathSensitive ? absPath : isAclPath(absPath);
+    }
+
+    /**
+     * Policies may match on resource paths, so descendants cannot be assumed
+     * to share the decisions of their ACL-bearing ancestors.
+     */
+    @Override
+    protected boolean supportsRemoveCheckStrategy(
+            final RemoveCheckStrategy strategy) {
+        return strategy != RemoveCheckStrategy.ACL_QUERY;
+    }
+
     /*
      * (non-Javadoc)
      * @see
@@ -65,8 +113,60 @@ public class FedoraXacmlPEP extends AbstractRolesPEP {
     public boolean rolesHaveModeShapePermission(final String absPath,
             final String[] actions, final Set<Principal> allPrincipals,
             final Principal userPrincipal, final Set<String> roles) {
+        final PolicyDecisionPoint pdp = pdpFactory.getPDP();
+        final RequestContext requestCtx;
+        if (pdp instanceof JBossPDP) {
+            requestCtx =
+                    createDirectRequest(absPath, actions, userPrincipal
+                            .getName(), roles);
+        } else {
+            requestCtx =
+                    createJaxbRequest(absPath, actions, userPrincipal
+                            .getName(), roles);
+        }
+
+        final ResponseContext response = pdp.evaluate(requestCtx);
+        log.debug("PDP returned response: {}", response);
+        final ResultType result = response.getResult();
+        final DecisionType decision = result.getDecision();
+        // only PERMIT and DENY results without obligations may be cached
+        if ((DecisionType.PERMIT != decision && DecisionType.DENY != decision) ||
+                (result.getObligations() != null && !result.getObligations()
+                        .getObligation().isEmpty())) {
+            markDecisionUncacheable();
+        }
+        return (DecisionType.PERMIT == decision);
+    }
+
+    /**
+     * Builds a request context holding the PDP's native request, which the
+     * JBoss PDP evaluates without unmarshalling a JAXB request.
+     */
+    private RequestContext createDirectRequest(final String absPath,
+            final String[] actions, final String userName,
+            final Set<String> roles) {
+        final RequestCtx request =
+                requestBuilder.build(absPath, actions, userName, roles);
+        if (log.isDebugEnabled()) {
+            final ByteArrayOutputStream os = new ByteArrayOutputStream();
+            request.encode(os);
+            try {
+                log.debug("XACML request:\n{}", os.toString("utf-8"));
+            } catch (final UnsupportedEncodingException e) {
+                throw new Error("Cannot dump XACML request", e);
+            }
+        }
+        final RequestContext requestCtx =
+                RequestResponseContextFactory.createRequestCtx();
+        requestCtx.set(XACMLConstants.REQUEST_CTX, request);
+        return requestCtx;
+    }
+
+    private RequestContext createJaxbRequest(final String absPath,
+            final String[] actions, final String userName,
+            final Set<String> roles) {
         final RequestType request = new RequestType();
-        request.getSubject().add(createSubject(userPrincipal.getName(), roles));
+        request.getSubject().add(createSubject(userName, roles));
         request.getResource().add(createResource(absPath));
         request.setAction(createAction(actions));
         request.setEnvironment(new EnvironmentType());
@@ -90,11 +190,7 @@ public class FedoraXacmlPEP extends AbstractRolesPEP {
         } catch (final IOException e) {
             throw new Error("Cannot build XACML request", e);
         }
-
-        final ResponseContext response =
-                pdpFactory.getPDP().evaluate(requestCtx);
-        log.debug("PDP returned response: {}", response);
-        return (DecisionType.PERMIT == response.getResult().getDecision());
+        return requestCtx;
     }
 
     /**
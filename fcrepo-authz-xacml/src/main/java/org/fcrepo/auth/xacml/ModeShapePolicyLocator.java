@@ -16,73 +16,271 @@
 
 package org.fcrepo.auth.xacml;
 
-import java.util.List;
+import static javax.jcr.observation.Event.NODE_ADDED;
+import static javax.jcr.observation.Event.NODE_MOVED;
+import static javax.jcr.observation.Event.NODE_REMOVED;
+import static javax.jcr.observation.Event.PROPERTY_ADDED;
+import static javax.jcr.observation.Event.PROPERTY_CHANGED;
+import static javax.jcr.observation.Event.PROPERTY_REMOVED;
+
+import java.io.InputStream;
+import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.jcr.Binary;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
 
-import org.jboss.security.xacml.interfaces.PolicyLocator;
+import org.fcrepo.http.commons.session.SessionFactory;
+import org.jboss.security.xacml.factories.PolicyFactory;
 import org.jboss.security.xacml.interfaces.XACMLPolicy;
-import org.jboss.security.xacml.jaxb.Option;
+import org.jboss.security.xacml.locators.JBossPolicyLocator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 
 /**
+ * Locates XACML policies stored in the repository. Each child of the policy
+ * root node holds one policy document, either as a file (jcr:content/jcr:data)
+ * or directly in a jcr:data property.
+ * <p>
+ * Policies are parsed once and cached. The locator loads them when it is
+ * initialized, then observes the policy root and re-parses only the policy
+ * nodes that change, so policy evaluation never reads the repository.
+ * <p>
+ * The locator needs the repository, which is only started once the PEP
+ * exists, so it is not injected into the PDP factory; given a factory, the
+ * locator registers itself there once its policies are loaded.
+ *
  * @author Gregory Jansen
  */
-public class ModeShapePolicyLocator implements PolicyLocator {
+public class ModeShapePolicyLocator extends JBossPolicyLocator implements
+        EventListener {
 
-    /*
-     * (non-Javadoc)
-     * @see
-     * org.jboss.security.xacml.interfaces.AbstractLocator#setOptions(java.util
-     * .List)
+    private static final Logger log = LoggerFactory
+            .getLogger(ModeShapePolicyLocator.class);
+
+    private static final int EVENT_TYPES = NODE_ADDED | NODE_REMOVED |
+            NODE_MOVED | PROPERTY_ADDED | PROPERTY_CHANGED | PROPERTY_REMOVED;
+
+    public static final String DEFAULT_POLICY_ROOT_PATH = "/policies";
+
+    @Autowired
+    private SessionFactory sessionFactory = null;
+
+    private FedoraXacmlPDPFactory pdpFactory = null;
+
+    private String policyRootPath = DEFAULT_POLICY_ROOT_PATH;
+
+    private final ConcurrentMap<String, XACMLPolicy> policiesByPath =
+            new ConcurrentHashMap<String, XACMLPolicy>();
+
+    private final AtomicLong version = new AtomicLong();
+
+    private Session session = null;
+
+    /**
+     * @param sessionFactory the sessionFactory to set
      */
-    @Override
-    public void setOptions(final List<Option> arg0) {
-        // TODO Auto-generated method stub
+    public void setSessionFactory(final SessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+    }
 
+    /**
+     * @param pdpFactory the PDP factory to register with once the policies
+     *        are loaded
+     */
+    public void setPdpFactory(final FedoraXacmlPDPFactory pdpFactory) {
+        this.pdpFactory = pdpFactory;
     }
 
-    /*
-     * (non-Javadoc)
-     * @see
-     * org.jboss.security.xacml.interfaces.ContextMapOp#get(java.lang.String)
+    /**
+     * @return the path of the node whose children hold policies
      */
-    @Override
-    public <T> T get(final String arg0) {
-        // TODO Auto-generated method stub
-        return null;
+    public String getPolicyRootPath() {
+        return policyRootPath;
     }
 
-    /*
-     * (non-Javadoc)
-     * @see
-     * org.jboss.security.xacml.interfaces.ContextMapOp#set(java.lang.String,
-     * java.lang.Object)
+    /**
+     * @param policyRootPath the path of the node whose children hold policies
      */
-    @Override
-    public <T> void set(final String arg0, final T arg1) {
-        // TODO Auto-generated method stub
+    public void setPolicyRootPath(final String policyRootPath) {
+        this.policyRootPath = policyRootPath;
+    }
 
+    /**
+     * Get the version of the located policies, which changes whenever a
+     * policy is added, changed or removed. A policy document that cannot be
+     * parsed leaves the policies, and so the version, as they were.
+     *
+     * @return the policies version
+     */
+    public long getVersion() {
+        return version.get();
     }
 
-    /*
-     * (non-Javadoc)
-     * @see org.jboss.security.xacml.interfaces.PolicyLocator#getPolicies()
+    /**
+     * Load all policies, start observing the policy root and register with
+     * the PDP factory, if one is set.
+     *
+     * @throws RepositoryException if the policies cannot be read or
+     *         published
      */
-    @Override
-    public Set<XACMLPolicy> getPolicies() {
-        // TODO Auto-generated method stub
-        return null;
+    @PostConstruct
+    public synchronized void init() throws RepositoryException {
+        if (session != null) {
+            return;
+        }
+        session = sessionFactory.getInternalSession();
+        session.getWorkspace().getObservationManager().addEventListener(this,
+                EVENT_TYPES, policyRootPath, true, null, null, false);
+        if (session.nodeExists(policyRootPath)) {
+            for (final NodeIterator ni =
+                    session.getNode(policyRootPath).getNodes(); ni.hasNext();) {
+                load(ni.nextNode().getPath());
+            }
+        } else {
+            log.info("No repository policies found at {}", policyRootPath);
+        }
+        publish();
+        if (pdpFactory != null) {
+            pdpFactory.setRepositoryPolicyLocator(this);
+            try {
+                pdpFactory.reload();
+            } catch (final Exception e) {
+                throw new RepositoryException(
+                        "Cannot publish repository policies", e);
+            }
+        }
     }
 
     /*
      * (non-Javadoc)
      * @see
-     * org.jboss.security.xacml.interfaces.PolicyLocator#setPolicies(java.util
-     * .Set)
+     * javax.jcr.observation.EventListener#onEvent(javax.jcr.observation.EventIterator
+     * )
      */
     @Override
-    public void setPolicies(final Set<XACMLPolicy> arg0) {
-        // TODO Auto-generated method stub
+    public void onEvent(final EventIterator events) {
+        final Set<String> changed = new HashSet<String>();
+        try {
+            while (events.hasNext()) {
+                final Event event = events.nextEvent();
+                final String policyPath = policyNodePath(event.getPath());
+                if (policyPath != null) {
+                    changed.add(policyPath);
+                }
+                if (event.getType() == NODE_MOVED) {
+                    final Object source = event.getInfo().get("srcAbsPath");
+                    if (source != null) {
+                        final String sourcePolicy =
+                                policyNodePath(source.toString());
+                        if (sourcePolicy != null) {
+                            changed.add(sourcePolicy);
+                        }
+                    }
+                }
+            }
+            synchronized (this) {
+                boolean swapped = false;
+                for (final String path : changed) {
+                    swapped |= load(path);
+                }
+                if (swapped) {
+                    publish();
+                }
+            }
+        } catch (final RepositoryException e) {
+            log.error("Cannot refresh repository policies", e);
+        }
+    }
 
+    /**
+     * Stop observing the policy root and release the session.
+     *
+     * @throws RepositoryException
+     */
+    @PreDestroy
+    public synchronized void close() throws RepositoryException {
+        if (session != null) {
+            try {
+                session.getWorkspace().getObservationManager()
+                        .removeEventListener(this);
+            } finally {
+                session.logout();
+                session = null;
+            }
+        }
+    }
+
+    /**
+     * @param path a path within the policy root
+     * @return the path of the policy node containing it, or null
+     */
+    private String policyNodePath(final String path) {
+        final String prefix =
+                policyRootPath.endsWith("/") ? policyRootPath
+                        : policyRootPath + "/";
+        if (!path.startsWith(prefix) || path.length() == prefix.length()) {
+            return null;
+        }
+        final int end = path.indexOf('/', prefix.length());
+        return end < 0 ? path : path.substring(0, end);
+    }
+
+    /**
+     * Parse the policy stored at the given node path, or forget it if the
+     * node or its document is gone.
+     *
+     * @return true if the policies changed
+     */
+    private boolean load(final String path) throws RepositoryException {
+        if (!session.nodeExists(path)) {
+            if (policiesByPath.remove(path) != null) {
+                log.info("Removed repository policy {}", path);
+                return true;
+            }
+            return false;
+        }
+        final Node node = session.getNode(path);
+        final Node content =
+                node.hasNode(Node.JCR_CONTENT) ? node.getNode(Node.JCR_CONTENT)
+                        : node;
+        if (!content.hasProperty(Property.JCR_DATA)) {
+            log.debug("No policy document yet at {}", path);
+            return policiesByPath.remove(path) != null;
+        }
+        final Binary binary = content.getProperty(Property.JCR_DATA).getBinary();
+        try (InputStream in = binary.getStream()) {
+            policiesByPath.put(path, PolicyFactory.createPolicy(in));
+            log.info("Loaded repository policy {}", path);
+            return true;
+        } catch (final Exception e) {
+            log.error("Cannot parse policy at " + path +
+                    ", keeping the previous version", e);
+            return false;
+        } finally {
+            binary.dispose();
+        }
+    }
+
+    /**
+     * Hand the current policies to the underlying policy finder.
+     */
+    private void publish() {
+        super.setPolicies(new HashSet<XACMLPolicy>(policiesByPath.values()));
+        version.incrementAndGet();
     }
 
 }
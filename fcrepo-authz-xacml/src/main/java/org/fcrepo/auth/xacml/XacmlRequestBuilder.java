@@ -0,0 +1,111 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.auth.xacml;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jboss.security.xacml.sunxacml.attr.StringAttribute;
+import org.jboss.security.xacml.sunxacml.ctx.Attribute;
+import org.jboss.security.xacml.sunxacml.ctx.RequestCtx;
+import org.jboss.security.xacml.sunxacml.ctx.Subject;
+
+/**
+ * Builds XACML requests directly as the PDP's native request objects,
+ * skipping the JAXB request model and the XML round trip it requires.
+ * Attributes for action and role names are immutable and built once; only
+ * the resource path and user name are created per request.
+ */
+public class XacmlRequestBuilder {
+
+    static final URI SUBJECT_CATEGORY = URI
+            .create("urn:oasis:names:tc:xacml:1.0:subject-category:access-subject");
+
+    static final URI ROLE_ID = URI
+            .create("urn:oasis:names:tc:xacml:2.0:subject:role");
+
+    static final URI USER_NAME_ID = URI
+            .create("urn:xacml:2.0:interop:example:subject:user-name");
+
+    static final URI RESOURCE_ID = URI
+            .create("urn:oasis:names:tc:xacml:1.0:resource:resource-id");
+
+    static final URI ACTION_ID = URI
+            .create("urn:oasis:names:tc:xacml:1.0:action:action-id");
+
+    private static final Set<Attribute> NO_ENVIRONMENT = Collections
+            .emptySet();
+
+    private final ConcurrentMap<String, Attribute> roleAttributes =
+            new ConcurrentHashMap<String, Attribute>();
+
+    private final ConcurrentMap<String, Attribute> actionAttributes =
+            new ConcurrentHashMap<String, Attribute>();
+
+    /**
+     * Build a request for the given subject, resource and actions.
+     *
+     * @param absPath the resource path
+     * @param actions the requested actions
+     * @param userName the name of the user principal
+     * @param roles the user's effective roles
+     * @return the PDP request
+     */
+    public RequestCtx build(final String absPath, final String[] actions,
+            final String userName, final Set<String> roles) {
+        final Set<Attribute> subjectAttributes =
+                new HashSet<Attribute>(roles.size() + 1);
+        for (final String role : roles) {
+            subjectAttributes.add(template(roleAttributes, ROLE_ID, role));
+        }
+        subjectAttributes.add(attribute(USER_NAME_ID, userName));
+        final Set<Subject> subjects =
+                Collections.singleton(new Subject(SUBJECT_CATEGORY,
+                        subjectAttributes));
+
+        final Set<Attribute> resource =
+                Collections.singleton(attribute(RESOURCE_ID, absPath));
+
+        final Set<Attribute> action = new HashSet<Attribute>(actions.length);
+        for (final String a : actions) {
+            action.add(template(actionAttributes, ACTION_ID, a));
+        }
+        return new RequestCtx(subjects, resource, action, NO_ENVIRONMENT);
+    }
+
+    private static Attribute template(
+            final ConcurrentMap<String, Attribute> templates, final URI id,
+            final String value) {
+        Attribute result = templates.get(value);
+        if (result == null) {
+            result = attribute(id, value);
+            final Attribute existing = templates.putIfAbsent(value, result);
+            if (existing != null) {
+                result = existing;
+            }
+        }
+        return result;
+    }
+
+    private static Attribute attribute(final URI id, final String value) {
+        return new Attribute(id, null, null, new StringAttribute(value));
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static javax.jcr.observation.Event.NODE_REMOVED;
+import static javax.jcr.observation.Event.PROPERTY_CHANGED;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.InputStream;
+import java.util.Set;
+
+import javax.jcr.Binary;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+
+import org.fcrepo.http.commons.session.SessionFactory;
+import org.jboss.security.xacml.interfaces.XACMLPolicy;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Tests loading and refreshing repository policies.
+ */
+public class ModeShapePolicyLocatorTest {
+
+    private static final String POLICY_PATH = "/policies/processor";
+
+    private final SessionFactory sessionFactory = mock(SessionFactory.class);
+
+    private final Session session = mock(Session.class, RETURNS_DEEP_STUBS);
+
+    private final Binary binary = mock(Binary.class);
+
+    private final ModeShapePolicyLocator locator =
+            new ModeShapePolicyLocator();
+
+    private String document = "policies/processor-role.xml";
+
+    @Before
+    public void setUp() throws RepositoryException {
+        when(sessionFactory.getInternalSession()).thenReturn(session);
+        final Node policy = mock(Node.class);
+        when(policy.getPath()).thenReturn(POLICY_PATH);
+        when(policy.hasProperty(Property.JCR_DATA)).thenReturn(true);
+        final Property data = mock(Property.class);
+        when(data.getBinary()).thenReturn(binary);
+        when(policy.getProperty(Property.JCR_DATA)).thenReturn(data);
+        when(binary.getStream()).thenAnswer(new Answer<InputStream>() {
+
+            @Override
+            public InputStream answer(final InvocationOnMock invocation) {
+                return getClass().getClassLoader().getResourceAsStream(
+                        document);
+            }
+        });
+        final NodeIterator children = mock(NodeIterator.class);
+        when(children.hasNext()).thenReturn(true, false);
+        when(children.nextNode()).thenReturn(policy);
+        when(session.nodeExists("/policies")).thenReturn(true);
+        when(session.getNode("/policies").getNodes()).thenReturn(children);
+        when(session.nodeExists(POLICY_PATH)).thenReturn(true);
+        when(session.getNode(POLICY_PATH)).thenReturn(policy);
+        locator.setSessionFactory(sessionFactory);
+    }
+
+    @Test
+    public void testPoliciesLoadAtInit() throws RepositoryException {
+        locator.init();
+        assertEquals(1, locator.getPolicies().size());
+        locator.getPolicies();
+        // evaluation reads the loaded policies, not the repository
+        verify(sessionFactory, times(1)).getInternalSession();
+        verify(binary, times(1)).getStream();
+    }
+
+    @Test
+    public void testPolicyChangedAtRuntime() throws RepositoryException {
+        locator.init();
+        final Set<XACMLPolicy> before = locator.getPolicies();
+        final long version = locator.getVersion();
+        document = "policies/metadata-patron-role.xml";
+        locator.onEvent(events(event(PROPERTY_CHANGED, POLICY_PATH + "/" +
+                Property.JCR_DATA)));
+        final Set<XACMLPolicy> after = locator.getPolicies();
+        assertEquals(1, after.size());
+        assertFalse(after.containsAll(before));
+        assertTrue(locator.getVersion() > version);
+    }
+
+    @Test
+    public void testPolicyRemovedAtRuntime() throws RepositoryException {
+        locator.init();
+        final long version = locator.getVersion();
+        when(session.nodeExists(POLICY_PATH)).thenReturn(false);
+        locator.onEvent(events(event(NODE_REMOVED, POLICY_PATH)));
+        assertTrue(locator.getPolicies().isEmpty());
+        assertTrue(locator.getVersion() > version);
+    }
+
+    @Test
+    public void testRegistersWithPdpFactory() throws Exception {
+        final FedoraXacmlPDPFactory pdpFactory =
+                mock(FedoraXacmlPDPFactory.class);
+        locator.setPdpFactory(pdpFactory);
+        locator.init();
+        verify(pdpFactory).setRepositoryPolicyLocator(locator);
+        verify(pdpFactory).reload();
+    }
+
+    @Test
+    public void testUnparsablePolicyKeepsVersion() throws RepositoryException {
+        locator.init();
+        final Set<XACMLPolicy> before = locator.getPolicies();
+        final long version = locator.getVersion();
+        document = "repository.json";
+        locator.onEvent(events(event(PROPERTY_CHANGED, POLICY_PATH + "/" +
+                Property.JCR_DATA)));
+        assertEquals(before, locator.getPolicies());
+        assertEquals(version, locator.getVersion());
+    }
+
+    @Test
+    public void testEventsOutsidePolicyRootAreIgnored()
+        throws RepositoryException {
+        locator.init();
+        final long version = locator.getVersion();
+        locator.onEvent(events(event(PROPERTY_CHANGED, "/other/jcr:data")));
+        assertEquals(version, locator.getVersion());
+    }
+
+    private static Event event(final int type, final String path)
+        throws RepositoryException {
+        final Event event = mock(Event.class);
+        when(event.getType()).thenReturn(type);
+        when(event.getPath()).thenReturn(path);
+        return event;
+    }
+
+    private static EventIterator events(final Event event) {
+        final EventIterator events = mock(EventIterator.class);
+        when(events.hasNext()).thenReturn(true, false);
+        when(events.nextEvent()).thenReturn(event);
+        return events;
+    }
+}
@@ -15,20 +15,29 @@
  */
 package org.fcrepo.auth.xacml;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
+import java.security.Principal;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
-import javax.jcr.RepositoryException;
-
+import org.fcrepo.auth.roles.common.AbstractRolesPEP.RemoveCheckStrategy;
 import org.fcrepo.auth.roles.common.AccessRolesProvider;
+import org.fcrepo.auth.roles.common.Constants.JcrName;
+import org.fcrepo.auth.roles.common.InMemoryDecisionCache;
 import org.fcrepo.http.commons.session.SessionFactory;
 import org.junit.Before;
 import org.junit.Test;
+import org.jboss.security.xacml.interfaces.PolicyDecisionPoint;
 import org.modeshape.jcr.api.Session;
 
 
@@ -50,6 +59,16 @@ public class XacmlPEPTest {
 
     Map<String, List<String>> acl = null;
 
+    Principal userPrincipal = new Principal() {
+
+        @Override
+        public String getName() {
+            return "examplereader";
+        }
+    };
+
+    Set<Principal> allPrincipals = Collections.singleton(userPrincipal);
+
     /**
      * @throws java.lang.Exception
      */
@@ -68,12 +87,141 @@ public class XacmlPEPTest {
     }
 
     @Test
-    public void testReader() throws RepositoryException {
+    public void testReader() throws Exception {
         final String path = "/my/data/is/here";
-        // this.pep.rolesHaveModeShapePermission(RootPath.INSTANCE, new String[]
-        // {"read"}, allPrincipals, userPrincipal, roles)
+        pdpFactory.init();
+        final Set<String> roles = Collections.singleton("reader");
+        assertTrue(pep.rolesHaveModeShapePermission(path,
+                new String[] {"read"}, allPrincipals, userPrincipal, roles));
+        assertFalse(pep.rolesHaveModeShapePermission(path,
+                new String[] {"add_node"}, allPrincipals, userPrincipal, roles));
+    }
+
+    @Test
+    public void testNonReader() throws Exception {
+        final String path = "/my/data/is/here";
+        pdpFactory.init();
+        final Set<String> roles = Collections.singleton("writer");
+        assertFalse(pep.rolesHaveModeShapePermission(path,
+                new String[] {"read"}, allPrincipals, userPrincipal, roles));
+    }
 
+    @Test
+    public void testReloadPublishesNewPDP() throws Exception {
+        final String path = "/my/data/is/here";
+        pdpFactory.init();
+        final PolicyDecisionPoint before = pdpFactory.getPDP();
+        final long version = pdpFactory.getPolicyVersion();
+        pdpFactory.reload();
+        assertNotSame(before, pdpFactory.getPDP());
+        assertTrue(pdpFactory.getPolicyVersion() > version);
+        final Set<String> roles = Collections.singleton("reader");
+        assertTrue(pep.rolesHaveModeShapePermission(path,
+                new String[] {"read"}, allPrincipals, userPrincipal, roles));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAclQueryRemoveCheckIsRejected() {
+        pep.setRemoveCheckStrategy(RemoveCheckStrategy.ACL_QUERY);
+    }
+
+    @Test
+    public void testRecursiveRemoveChecksAreAccepted() {
+        pep.setRemoveCheckStrategy(RemoveCheckStrategy.PARALLEL);
+        pep.setRemoveCheckStrategy(RemoveCheckStrategy.RECURSIVE);
+        assertEquals(RemoveCheckStrategy.RECURSIVE, pep
+                .getRemoveCheckStrategy());
+    }
 
+    @Test
+    public void testNoDecisionCacheByDefault() {
+        assertNull(new FedoraXacmlPEP().getDecisionCache());
+    }
+
+    @Test
+    public void testDecisionsAreCachedPerPolicyVersion() throws Exception {
+        final String path = "/my/data/is/here";
+        pdpFactory.init();
+        final InMemoryDecisionCache cache = new InMemoryDecisionCache();
+        pep.setDecisionCache(cache);
+        final Set<String> roles = Collections.singleton("reader");
+        final String[] read = new String[] {"read"};
+        assertTrue(pep.rolesHaveCachedPermission(path, read, allPrincipals,
+                userPrincipal, roles));
+        assertTrue(pep.rolesHaveCachedPermission(path, read, allPrincipals,
+                userPrincipal, roles));
+        assertEquals(1, cache.stats().hitCount());
+        pdpFactory.reload();
+        assertTrue(pep.rolesHaveCachedPermission(path, read, allPrincipals,
+                userPrincipal, roles));
+        assertEquals(1, cache.stats().hitCount());
+    }
+
+    @Test
+    public void testDecisionsAreCachedPerPEP() throws Exception {
+        final String path = "/my/data/is/here";
+        pdpFactory.init();
+        final InMemoryDecisionCache cache = new InMemoryDecisionCache();
+        pep.setDecisionCache(cache);
+        final FedoraXacmlPEP denyingPEP = new FedoraXacmlPEP() {
+
+            @Override
+            public boolean rolesHaveModeShapePermission(final String absPath,
+                    final String[] actions,
+                    final Set<Principal> allPrincipals,
+                    final Principal userPrincipal, final Set<String> roles) {
+                return false;
+            }
+        };
+        denyingPEP.setPdpFactory(pdpFactory);
+        denyingPEP.setDecisionCache(cache);
+        final Set<String> roles = Collections.singleton("reader");
+        final String[] read = new String[] {"read"};
+        assertTrue(pep.rolesHaveCachedPermission(path, read, allPrincipals,
+                userPrincipal, roles));
+        assertFalse(denyingPEP.rolesHaveCachedPermission(path, read,
+                allPrincipals, userPrincipal, roles));
+        assertEquals(0, cache.stats().hitCount());
+    }
+
+    @Test
+    public void testDecisionsAreCachedPerPEPInstance() throws Exception {
+        final String path = "/my/data/is/here";
+        pdpFactory.init();
+        final InMemoryDecisionCache cache = new InMemoryDecisionCache();
+        pep.setDecisionCache(cache);
+        final FedoraXacmlPEP otherPEP = new FedoraXacmlPEP();
+        otherPEP.setPdpFactory(pdpFactory);
+        otherPEP.setDecisionCache(cache);
+        final Set<String> roles = Collections.singleton("reader");
+        final String[] read = new String[] {"read"};
+        assertTrue(pep.rolesHaveCachedPermission(path, read, allPrincipals,
+                userPrincipal, roles));
+        assertTrue(otherPEP.rolesHaveCachedPermission(path, read,
+                allPrincipals, userPrincipal, roles));
+        assertEquals(0, cache.stats().hitCount());
+        assertTrue(otherPEP.rolesHaveCachedPermission(path, read,
+                allPrincipals, userPrincipal, roles));
+        assertEquals(1, cache.stats().hitCount());
+    }
+
+    @Test
+    public void testPathInsensitiveDecisionsSeparateAclPaths()
+        throws Exception {
+        pdpFactory.init();
+        final InMemoryDecisionCache cache = new InMemoryDecisionCache();
+        pep.setDecisionCache(cache);
+        pep.setDecisionCachePathSensitive(false);
+        final Set<String> roles = Collections.singleton("reader");
+        final String[] read = new String[] {"read"};
+        pep.rolesHaveCachedPermission("/my/data", read, allPrincipals,
+                userPrincipal, roles);
+        pep.rolesHaveCachedPermission("/my/data/authz:rbacl", read,
+                allPrincipals, userPrincipal, roles);
+        assertEquals(0, cache.stats().hitCount());
+        pep.rolesHaveCachedPermission("/my/other/{" + JcrName.NS_URI +
+                "}rbacl", read, allPrincipals, userPrincipal, roles);
+        assertEquals(1, cache.stats().hitCount());
     }
 
 }